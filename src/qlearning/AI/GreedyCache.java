@@ -0,0 +1,137 @@
+package qlearning.AI;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the greedy (arg max) move of recently seen board states, so that an agent revisiting a position
+ * can choose its greedy move without scanning the state's row of Q values.
+ *
+ * The cache is direct-mapped: each board key maps to one slot, and a newer state simply replaces whatever occupied
+ * its slot. Each entry also records the number of legal moves, which guards against keys shared by different boards.
+ *
+ * Entries are invalidated whenever their state's Q values change. Every slot has a version that each update bumps;
+ * an entry is only valid while the version it was computed under is current. Readers take the version before reading
+ * the Q values, so an entry computed from Q values that were updated meanwhile is never used. Neither reads nor
+ * writes lock.
+ */
+public class GreedyCache {
+
+    // An immutable cache entry, so that a racing reader sees either a whole entry or none at all.
+    private static final class Entry {
+        final long key;
+        final int numLegalMoves;
+        final int greedyMove;
+        final long version;
+
+        Entry(final long key, final int numLegalMoves, final int greedyMove, final long version) {
+            this.key = key;
+            this.numLegalMoves = numLegalMoves;
+            this.greedyMove = greedyMove;
+            this.version = version;
+        }
+    }
+
+    private final Entry[] entries;
+    private final AtomicLongArray versions;
+    private final int mask;
+
+    // Statistics for reporting.
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), invalidations = new LongAdder();
+
+    /**
+     * @param capacity the most states the cache may hold. Rounded up to a power of two.
+     */
+    public GreedyCache(final int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Error: the cache capacity must be positive, but was " + capacity + ".");
+
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        this.entries = new Entry[size];
+        this.versions = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Looks up the cached greedy move of a state.
+     * @param key the state's key.
+     * @param numLegalMoves the number of legal moves at this position.
+     * @return the index of the greedy move, or -1 if it is not cached.
+     */
+    public int lookup(final long key, final int numLegalMoves) {
+        final int slot = slot(key);
+        final Entry entry = entries[slot];
+
+        if (entry != null && entry.key == key && entry.numLegalMoves == numLegalMoves && entry.version == versions.get(slot)) {
+            hits.increment();
+            return entry.greedyMove;
+        }
+
+        misses.increment();
+        return -1;
+    }
+
+    /**
+     * Must be called before reading the Q values that a greedy move is computed from.
+     * @param key the state's key.
+     * @return the version to store the greedy move under.
+     */
+    public long version(final long key) {
+        return versions.get(slot(key));
+    }
+
+    /**
+     * Caches the greedy move of a state. If the state's Q values changed since the version was taken, the entry is
+     * never used.
+     * @param key the state's key.
+     * @param numLegalMoves the number of legal moves at this position.
+     * @param greedyMove the index of the greedy move.
+     * @param version the version taken before the Q values were read.
+     */
+    public void store(final long key, final int numLegalMoves, final int greedyMove, final long version) {
+        entries[slot(key)] = new Entry(key, numLegalMoves, greedyMove, version);
+    }
+
+    /**
+     * Invalidates the cached greedy move of a state, after its Q values have changed.
+     * @param key the state's key.
+     */
+    public void invalidate(final long key) {
+        versions.incrementAndGet(slot(key));
+        invalidations.increment();
+    }
+
+    /**
+     * @return the fraction of lookups that found the greedy move in the cache.
+     */
+    public double hitRate() {
+        final long lookups = hits.sum() + misses.sum();
+        return lookups == 0 ? 0 : (double) hits.sum() / lookups;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    /**
+     * Spreads the key's bits, as hashcode keys often differ in only a few of them.
+     */
+    private int slot(final long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+}
@@ -1,10 +1,12 @@
 package qlearning.AI;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import game.Game;
 import main.collections.FastArrayList;
 import org.jetbrains.annotations.NotNull;
+import qlearning.util.KeyVerifier;
+import qlearning.util.ModelRegistry;
+import qlearning.util.QPrecision;
+import qlearning.util.StateKeys;
 import qlearning.util.Utils;
 import util.AI;
 import util.Context;
@@ -15,6 +17,9 @@ import java.util.concurrent.ThreadLocalRandom;
 
 public class QLearningAI extends AI {
 
+    // The models loaded for Ludii, shared read-only by every instance so that concurrent games don't each load a copy.
+    private static final ModelRegistry SHARED_MODELS = new ModelRegistry();
+
     // Player ID
     protected int player = -1;
 
@@ -25,20 +30,37 @@ public class QLearningAI extends AI {
     // Whether for the AI to learn or not.
     private final boolean learn;
 
+    // The backup applied at the end of each episode: n-step returns, or TD(lambda) if lambda is positive.
+    // The defaults, n = 1 and lambda = 0, give the one-step Q-learning rule.
+    private int nStep = 1;
+    private double lambda = 0;
+
+    // The precision used for the Q values of a newly created Q table.
+    private final QPrecision precision;
+
+    // How board states are turned into Q table keys, and an optional check that no two boards share a key.
+    private StateKeys keys = StateKeys.HASHCODE;
+    private KeyVerifier verifier = null;
+
+    // The capacity of the greedy move cache attached to a newly created Q table, or 0 for none.
+    private int greedyCacheCapacity = 0;
+
     // The underlying Q table.
-    private volatile BiMap<Integer, double[]> Q = null;
+    private volatile QTable Q = null;
 
     // Move History (for this episode)
-    // Stores a list of Board Hashes, Move Made.
-    // Storage order: board hashcode, the move choice made, and the number of legal moves at the time.
-    private volatile ConcurrentLinkedDeque<int[]> moveHistory = null;
+    // Stores a list of Board Keys, Move Made, in the order the moves were made.
+    // Storage order: board key, the move choice made, the number of legal moves at the time, and 1 if the move was
+    // exploratory (a random move that was not greedy when it was chosen), otherwise 0.
+    private volatile ConcurrentLinkedDeque<long[]> moveHistory = null;
 
     /**
      * A default constructor used when loading this AI From the Ludii platform. This requires a file
-     * "resources/AIs/Q-AI-0 0 1.bin" in to exist relative to the jar.
+     * "resources/AIs/Q-AI-0 0 1.bin" in to exist relative to the jar. The model is loaded once, read-only, and shared
+     * by every instance, while each instance keeps its own per-game state.
      */
     public QLearningAI() {
-        this(0.01, 0.80, 0, "Q-AI-0 0 1.bin", false);
+        this(0.01, 0.80, 0, SHARED_MODELS.load("Q-AI-0 0 1.bin"), false);
     }
 
     /**
@@ -49,11 +71,24 @@ public class QLearningAI extends AI {
      * @param train whether the model should keep learning from playing.
      */
     public QLearningAI(double alpha, double gamma, double epsilon, boolean train) {
+        this(alpha, gamma, epsilon, train, QPrecision.DOUBLE);
+    }
+
+    /**
+     * Constructor (for creating a new agent with reduced precision Q values)
+     * @param alpha the learning rate of the model
+     * @param gamma the future reward discount rate
+     * @param epsilon the probability the model takes a random move via an epsilon-greedy policy.
+     * @param train whether the model should keep learning from playing.
+     * @param precision the precision with which the Q values are stored.
+     */
+    public QLearningAI(double alpha, double gamma, double epsilon, boolean train, QPrecision precision) {
         this.friendlyName = "Q-Learning Agent";
         this.alpha = alpha;
         this.gamma = gamma;
         this.epsilon = epsilon;
         this.learn = train;
+        this.precision = precision;
     }
 
     /**
@@ -75,10 +110,22 @@ public class QLearningAI extends AI {
      * @param train whether the model should keep learning from playing.
      */
     public QLearningAI(double alpha, double gamma, double epsilon, String modelName, boolean train) {
-        this(alpha, gamma, epsilon, train);
+        this(alpha, gamma, epsilon, Utils.loadAI(modelName), train);
+    }
 
-        if (Q == null)
-            Q = Utils.loadAI(modelName);
+    /**
+     * Constructor (for wrapping an existing Q table, e.g. one converted to another precision)
+     * @param alpha the learning rate of the model
+     * @param gamma the future reward discount rate
+     * @param epsilon the probability the model takes a random move via an epsilon-greedy policy.
+     * @param Q the Q table the model plays with.
+     * @param train whether the model should keep learning from playing.
+     */
+    public QLearningAI(double alpha, double gamma, double epsilon, QTable Q, boolean train) {
+        this(alpha, gamma, epsilon, train, Q == null ? QPrecision.DOUBLE : Q.getPrecision());
+        this.Q = Q;
+        if (Q != null)
+            this.keys = Q.getKeys();
     }
 
     /**
@@ -90,7 +137,15 @@ public class QLearningAI extends AI {
     public void initAI(final Game game, final int playerID) {
         this.player = playerID;
 
-        this.Q = HashBiMap.create();
+        if (!keys.supports(game))
+            throw new IllegalArgumentException("Error: " + keys + " state keys cannot represent every board of this game.");
+
+        // Keep a loaded or previously trained Q table; initAI is called at the start of every episode.
+        if (this.Q == null) {
+            this.Q = new QTable(precision, keys);
+            if (greedyCacheCapacity > 0)
+                this.Q.enableGreedyCache(greedyCacheCapacity);
+        }
         if(moveHistory == null)
             moveHistory = new ConcurrentLinkedDeque<>();
     }
@@ -113,29 +168,52 @@ public class QLearningAI extends AI {
             throw new AssertionError("Error: random legal move " + randomLegalMove +
                     " is greater than the total number of possible legal moves " + numLegalMoves);
 
-        // Determine the board's hash code to create a unique identifier.
-        final int boardHashCode = Utils.boardToHashcode(context);
+        // Determine the board's key to create a unique identifier.
+        final long boardKey = keys.key(context);
+        if (verifier != null)
+            verifier.verify(boardKey, context);
 
-        // The final move we choose to make
+        // The final move we choose to make, and whether it was exploratory.
         final int moveChoice;
+        boolean exploratory = false;
 
         // Perform an Epsilon-Greedy Policy for choosing a move.
         if (ThreadLocalRandom.current().nextDouble(0, 1) < this.epsilon) {
             // We will return the random move.
             moveChoice = randomLegalMove;
+
+            // Record whether it departs from the greedy policy as the Q values stand now, for TD(lambda)'s traces.
+            if (this.learn && this.lambda > 0) {
+                final double[] QValues = this.getQValues(boardKey, numLegalMoves);
+                exploratory = QValues[moveChoice] < max(QValues);
+            }
         } else {
             // Otherwise, we select the optimal list in memory at this state.
             // Note: If there are no optimal moves from this state yet, then we will
             // choose the random move.
 
-            // Determine the possible Q values from this state.
-            final double[] QValues = this.getQValues(boardHashCode, numLegalMoves);
+            // A repeated position's greedy move may be cached, saving the scan of its Q values.
+            final GreedyCache cache = Q.getGreedyCache();
+            final int cachedMoveChoice = cache == null ? -1 : cache.lookup(boardKey, numLegalMoves);
+
+            if (cachedMoveChoice >= 0) {
+                moveChoice = cachedMoveChoice;
+            } else {
+                // Taken before reading the Q values, so that a concurrent update discards what is cached below.
+                final long cacheVersion = cache == null ? 0 : cache.version(boardKey);
 
-            if (QValues.length == 0)
-                throw new AssertionError("Error: the Q values array was empty. Aborting.");
+                // Determine the possible Q values from this state.
+                final double[] QValues = this.getQValues(boardKey, numLegalMoves);
 
-            // Find the arg max Q value. The maximum value's index is our optimal move choice.
-            moveChoice = argmax(QValues);
+                if (QValues.length == 0)
+                    throw new AssertionError("Error: the Q values array was empty. Aborting.");
+
+                // Find the arg max Q value. The maximum value's index is our optimal move choice.
+                moveChoice = argmax(QValues);
+
+                if (cache != null)
+                    cache.store(boardKey, numLegalMoves, moveChoice, cacheVersion);
+            }
         }
 
         // Finally, return the optimal move, as defined by the policy.
@@ -145,12 +223,13 @@ public class QLearningAI extends AI {
         // Ensure that the move choice is legal
 //        assert moveChoice < legalMoves.size();
 
-        // Put the moves in backwards order to the Queue, so that it is in FILO order.
+        // Append the move to the history, which is replayed once the episode is over.
         if (this.learn) {
-            int[] move = new int[3];
-            move[0] = boardHashCode;
+            long[] move = new long[4];
+            move[0] = boardKey;
             move[1] = moveChoice;
             move[2] = numLegalMoves;
+            move[3] = exploratory ? 1 : 0;
             moveHistory.add(move);
         }
 
@@ -160,8 +239,14 @@ public class QLearningAI extends AI {
     /**
      * After an episode has been played, this method will induce backward episodic reward updates.
      *
-     * A deque is held in memory that stores the order of the moves taken in an episode, in reverse order. Then the
-     * history is iterated across from final move -> first move, applying the reward updates at each step.
+     * A deque is held in memory that stores the moves taken in an episode, in the order they were made. The history
+     * is then replayed according to the configured backup:
+     *  - one-step (the default): iterated from final move -> first move, each move bootstrapping from the maximum
+     *    Q value of the state that followed it.
+     *  - n-step: as one-step, but each move bootstraps from the state n moves later, or from the final reward if the
+     *    episode ended within n moves.
+     *  - TD(lambda): replayed from first move -> final move with eligibility traces, so that the final reward reaches
+     *    every earlier move of the episode in a single pass.
      *
      * @param reward the reward from the final end state of a particular episode.
      */
@@ -170,97 +255,117 @@ public class QLearningAI extends AI {
         if (!this.learn)
             return;
 
-        // Implement a backwards Queue that allows for the whole game to be played
-        // And then, once the game is over, retroactively go down the queue to apply
-        // Q updates in place. This way, a whole game is simulated at once before updates occur.
-        // and are retroactively accounted for via the chain nature.
-
-        // So, we assume that the whole game has been played, with a reward of zero assumed for all but
+        // The whole game has been played before any updates occur, with a reward of zero assumed for all but
         // the very ending state.
         if (moveHistory == null) throw new AssertionError("Error: moveHistory was not instantiated. Aborting.");
 
         if (moveHistory.isEmpty()) throw new AssertionError("Error: moveHistory is empty when attempting to update the Q values. Aborting.");
 
-//        @NotNull Iterator<int[]> queueIterator = moveHistory.iterator();
-//
-//        if(!queueIterator.hasNext()) throw new AssertionError("Error: moveHistory iterator returns no next nodes when initialized at the beginning. Aborting.");
-        //
-        // Obtain the first node in the queue (the last state of the game).
-        //
-        // These will be updated as the queue progresses to store the previous state, and hence are not final.
-        //
-        // As we are effectively stepping backwards through the queue, we begin with the most recent moves
-        // and then update the move before it.
-        //
-        int[] currentMove = moveHistory.pop();
-        if (currentMove.length != 3) throw new AssertionError("Error: expected all moves to be arrays of length 3.");
-        int currentBoardHashcode = currentMove[0];
-        int currentNumLegalMoves = currentMove[2];
-
-        while (!moveHistory.isEmpty()) {
-            // Decode the current node from the queue.
-            final int[] previousMove = moveHistory.pop();
-            if (previousMove.length != 3) throw new AssertionError("Error: expected all moves to be arrays of length 3.");
-            final int previousBoardHashcode = previousMove[0];
-            final int previousMoveChoice    = previousMove[1];
-            final int previousNumLegalMoves = previousMove[2];
-
-            final double[] currentQValuesArray = getQValues(currentBoardHashcode, currentNumLegalMoves);
-
-            // Find the optimal Q value of the current step. This will be used to update the Q value
-            // of the previous state.
-            final double maxCurrentQValue = max(currentQValuesArray);
+        // The head of the deque is the first move of the episode.
+        final long[][] trajectory = moveHistory.toArray(new long[0][]);
+        for (long[] move : trajectory)
+            if (move.length != 4) throw new AssertionError("Error: expected all moves to be arrays of length 4.");
+
+        if (this.lambda > 0)
+            updateQLambda(trajectory, reward);
+        else
+            updateQNStep(trajectory, reward);
+
+        // Reset the move history.
+        moveHistory.clear();
+    }
+
+    /**
+     * Applies n-step Q-learning backups to an episode, stepping backwards from the final move so that each move
+     * bootstraps from Q values that were already updated during this pass. With n = 1 this is the one-step rule.
+     * @param trajectory the moves of the episode, in the order they were made.
+     * @param reward the reward from the final end state of the episode.
+     */
+    private void updateQNStep(final long[][] trajectory, final double reward) {
+        final int numMoves = trajectory.length;
+
+        for (int t = numMoves - 1; t >= 0; t--) {
+            final long boardKey     = trajectory[t][0];
+            final int moveChoice    = (int) trajectory[t][1];
+            final int numLegalMoves = (int) trajectory[t][2];
+
+            // The n-step return. Only the very final state of the game receives a potentially non-zero reward.
+            final double target;
+            final int bootstrapIndex = t + this.nStep;
+            if (bootstrapIndex >= numMoves) {
+                target = Math.pow(this.gamma, numMoves - 1 - t) * reward;
+            } else {
+                final long[] bootstrapMove = trajectory[bootstrapIndex];
+                target = Math.pow(this.gamma, this.nStep) * max(getQValues(bootstrapMove[0], (int) bootstrapMove[2]));
+            }
 
             //
-            // Perform the Q-learning update.
+            // Perform the Q-learning update. Ensure the state is kept in Q, then update it atomically, as other
+            // games may share the same Q table. The value is quantised to the table's precision.
             //
-            double[] previousQValuesArray = getQValues(previousBoardHashcode, previousNumLegalMoves);
-            final double initialQValue = previousQValuesArray[previousMoveChoice];
-            final double updatedQValue = (1 - this.alpha) * initialQValue + this.alpha * (reward + this.gamma * maxCurrentQValue);
+            Q.ensureRow(boardKey, numLegalMoves);
+            Q.updateQValue(boardKey, moveChoice, initialQValue -> (1 - this.alpha) * initialQValue + this.alpha * target);
+        }
+    }
 
-            // Update the array of previous Q Values, for memory efficiency.
-            previousQValuesArray[previousMoveChoice] = updatedQValue;
+    /**
+     * Applies Watkins's Q(lambda) to an episode, using the backward view: the moves are replayed in order, each
+     * one-step TD error is applied to every earlier move in proportion to its eligibility trace, and the traces decay
+     * by gamma * lambda per move. Traces are cut before an exploratory (non-greedy) move, as the moves before it no
+     * longer lead to the greedy policy's return. Whether a move was exploratory is decided when it was chosen, as the
+     * Q values may since have changed.
+     * @param trajectory the moves of the episode, in the order they were made.
+     * @param reward the reward from the final end state of the episode.
+     */
+    private void updateQLambda(final long[][] trajectory, final double reward) {
+        final int numMoves = trajectory.length;
+
+        // Replacing eligibility traces, indexed by the position of the move within the episode.
+        final double[] traces = new double[numMoves];
+        int firstTracedMove = 0;
+
+        for (int t = 0; t < numMoves; t++) {
+            final long[] move = trajectory[t];
+
+            // Determine the one-step TD error of this move.
+            final double target;
+            if (t == numMoves - 1) {
+                target = reward;
+            } else {
+                final long[] nextMove = trajectory[t + 1];
+                target = this.gamma * max(getQValues(nextMove[0], (int) nextMove[2]));
+            }
+            final double tdError = target - getQValues(move[0], (int) move[2])[(int) move[1]];
 
-            // Update Q.
-            if(Q.get(previousBoardHashcode)== null)
-                throw new AssertionError("Error: the previous board's hashcode is not kept in Q. Aborting.");
-            Q.put(previousBoardHashcode, previousQValuesArray);
+            traces[t] = 1;
 
-            // Set reward to be zero, as only the very final state of the game receives a potentially non-zero reward.
-            reward = 0;
+            // Apply the TD error to every move that is still eligible.
+            for (int k = firstTracedMove; k <= t; k++) {
+                final long[] tracedMove = trajectory[k];
+                final double step = this.alpha * tdError * traces[k];
+                Q.ensureRow(tracedMove[0], (int) tracedMove[2]);
+                Q.updateQValue(tracedMove[0], (int) tracedMove[1], initialQValue -> initialQValue + step);
+                traces[k] *= this.gamma * this.lambda;
+            }
 
-            // Update the current parameters.
-            currentBoardHashcode = previousBoardHashcode;
-            currentNumLegalMoves = previousNumLegalMoves;
+            if (t + 1 < numMoves && trajectory[t + 1][3] == 1)
+                firstTracedMove = t + 1;
         }
-
-        // Reset the move history.
-        moveHistory.clear();
     }
 
-
     /**
      * Retrieves the associated Q values for a particular board state. If the board state does not exist in memory yet,
-     * then an array of 0s the length of the number of legal moves is added and returned.
-     * @param boardHashCode the current state's unique hashcode.
+     * then an array of 0s the length of the number of legal moves is added and returned; an agent that does not learn
+     * returns it without adding it, so that evaluating a table never grows it. Reduced precision Q values are
+     * dequantised into the returned array.
+     * @param boardKey the current state's unique key.
      * @param numLegalMoves the number of legal moves at this position.
      * @return a double[] containing the Q values associated with the current board state.
      */
-    public double[] getQValues(final int boardHashCode, final int numLegalMoves) {
-        double[] qValues;
-
+    public double[] getQValues(final long boardKey, final int numLegalMoves) {
         if (Q == null) throw new AssertionError("Error: Q must be initialized. ");
 
-        if (!Q.containsKey(boardHashCode)) {
-            qValues = new double[numLegalMoves];
-            Q.put(boardHashCode, qValues);
-        } else {
-            qValues = Q.get(boardHashCode);
-
-            if (qValues == null) throw new AssertionError("Error: retrieved Q values are null, despite Q containing its key.");
-        }
-
-        return qValues;
+        return this.learn ? Q.getQValues(boardKey, numLegalMoves) : Q.peekQValues(boardKey, numLegalMoves);
     }
 
     /**
@@ -302,7 +407,7 @@ public class QLearningAI extends AI {
         return argMax;
     }
 
-    public BiMap<Integer, double[]> getQ() {
+    public QTable getQ() {
         if (Q == null) throw new AssertionError("Error: Attempting to access Q, but Q is null.");
         return Q;
     }
@@ -312,15 +417,76 @@ public class QLearningAI extends AI {
         return game.isAlternatingMoveGame();
     }
 
+    /**
+     * Called by Ludii once a game is over. Only the per-game state is cleared: the agent may play many more games, and
+     * dropping the Q table would make the next initAI start from an empty one.
+     */
     @Override
     public void closeAI() {
         super.closeAI();
-        Q = null;
-        moveHistory = null;
+        resetSession();
+    }
+
+    /**
+     * Clears the per-game state (the player ID and move history) so that this agent can play another game, while
+     * keeping its Q table. Any moves not yet rewarded are discarded.
+     */
+    public void resetSession() {
+        this.player = -1;
+        if (moveHistory != null)
+            moveHistory.clear();
     }
 
     public void setEpsilon(double eps) {
         this.epsilon = eps;
     }
 
+    /**
+     * Uses n-step returns when updating Q at the end of each episode. Ignored while lambda is positive.
+     * @param nStep the number of moves to look ahead before bootstrapping. 1 gives the one-step rule.
+     */
+    public void setNStep(int nStep) {
+        if (nStep < 1) throw new IllegalArgumentException("Error: n must be at least 1, but was " + nStep + ".");
+        this.nStep = nStep;
+    }
+
+    /**
+     * Uses TD(lambda) with eligibility traces when updating Q at the end of each episode.
+     * @param lambda the trace decay parameter in [0, 1]. 0 disables TD(lambda) in favour of n-step returns.
+     */
+    public void setLambda(double lambda) {
+        if (lambda < 0 || lambda > 1) throw new IllegalArgumentException("Error: lambda must be within [0, 1], but was " + lambda + ".");
+        this.lambda = lambda;
+    }
+
+    /**
+     * Sets how board states are turned into keys of a newly created Q table. A loaded Q table keeps the strategy it
+     * was trained with.
+     * @param keys the key strategy.
+     */
+    public void setKeys(StateKeys keys) {
+        if (Q != null && Q.getKeys() != keys)
+            throw new IllegalStateException("Error: the Q table was built with " + Q.getKeys() + " keys, not " + keys + ".");
+        this.keys = keys;
+    }
+
+    /**
+     * Caches the greedy move of recently seen states in the Q table this agent creates, so that repeated positions are
+     * answered without scanning their Q values. Has no effect on a Q table that was given to the agent or that it
+     * already created, which other agents may be sharing; use {@link QTable#enableGreedyCache(int)} for those.
+     * @param capacity the most states the cache may hold, or 0 for no cache.
+     */
+    public void setGreedyCache(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Error: the cache capacity must not be negative, but was " + capacity + ".");
+        this.greedyCacheCapacity = capacity;
+    }
+
+    /**
+     * Checks every board's key against its exact encoding, counting boards that share a key.
+     * @param verifier the verifier to record the checks with, or null to stop verifying.
+     */
+    public void setVerifier(KeyVerifier verifier) {
+        this.verifier = verifier;
+    }
+
 }
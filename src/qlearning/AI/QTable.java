@@ -0,0 +1,341 @@
+package qlearning.AI;
+
+import qlearning.util.QPrecision;
+import qlearning.util.StateKeys;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * The Q table of a Q-learning agent. Maps each board state's key to a row holding one Q value per legal move. The key
+ * is determined by the agent's {@link qlearning.util.StateKeys} strategy.
+ *
+ * Rows are stored with a configurable {@link QPrecision}. Q values are quantised when they are updated through
+ * {@link #updateQValue(long, int, DoubleUnaryOperator)}, and dequantised when read through
+ * {@link #getQValues(long, int)}.
+ *
+ * A Q table may be shared by many concurrent games. Reads never lock. Updates lock one of a fixed number of stripes,
+ * chosen by the board's key, so that concurrent updates to the same state are never lost while updates to different
+ * states rarely contend.
+ *
+ * A {@link GreedyCache} may be attached, which is then invalidated whenever a state's Q values change.
+ */
+public class QTable implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    // The number of locks guarding updates to the rows. A power of two.
+    private static final int NUM_STRIPES = 64;
+
+    // The precision each row of Q values is stored with.
+    private final QPrecision precision;
+
+    // How the board states were turned into keys.
+    private final StateKeys keys;
+
+    // Board key -> row of Q values, stored as a primitive array of the precision's type.
+    private final ConcurrentHashMap<Long, Object> rows;
+
+    // The locks guarding updates to the rows. Not saved with the table.
+    private final transient Object[] stripes;
+
+    // The states whose Q values changed since the last call to takeChangedRows, or null when changes are not being
+    // tracked. Not saved with the table.
+    private transient Set<Long> changed = null;
+
+    // Whether the table may no longer change, so that many games can read it concurrently. Not saved with the table.
+    private transient volatile boolean readOnly = false;
+
+    // The cache of each recent state's greedy move, or null when there is none. Not saved with the table.
+    private transient volatile GreedyCache greedyCache = null;
+
+    /**
+     * Creates an empty Q table keyed by board hashcodes.
+     * @param precision the precision to store the Q values with.
+     */
+    public QTable(final QPrecision precision) {
+        this(precision, StateKeys.HASHCODE);
+    }
+
+    /**
+     * Creates an empty Q table.
+     * @param precision the precision to store the Q values with.
+     * @param keys how the board states are turned into keys.
+     */
+    public QTable(final QPrecision precision, final StateKeys keys) {
+        this(precision, keys, new ConcurrentHashMap<>());
+    }
+
+    private QTable(final QPrecision precision, final StateKeys keys, final ConcurrentHashMap<Long, Object> rows) {
+        this.precision = precision;
+        this.keys = keys;
+        this.rows = rows;
+        this.stripes = new Object[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++)
+            stripes[i] = new Object();
+    }
+
+    /**
+     * Recreates the locks, which are not saved with the table.
+     */
+    private Object readResolve() {
+        return new QTable(precision, keys, rows);
+    }
+
+    /**
+     * Wraps a Q map saved before Q tables supported reduced precisions. Such models always used doubles, and were
+     * keyed by the int board hashcode.
+     * @param Q the map of board hashcodes to Q values.
+     * @return a double precision Q table holding the same rows.
+     */
+    public static QTable fromMap(final Map<Integer, double[]> Q) {
+        final QTable table = new QTable(QPrecision.DOUBLE);
+        for (Map.Entry<Integer, double[]> entry : Q.entrySet())
+            table.rows.put((long) entry.getKey(), entry.getValue());
+        return table;
+    }
+
+    /**
+     * Retrieves the Q values of a board state. If the board state does not exist in the table yet, a row of 0s the
+     * length of the number of legal moves is added.
+     *
+     * For double precision tables the stored row itself is returned, so callers must not modify the returned array;
+     * use {@link #updateQValue(long, int, DoubleUnaryOperator)} instead. A read-only table returns a row of 0s for an unknown board
+     * state without adding it.
+     * @param boardKey the state's key.
+     * @param numLegalMoves the number of legal moves at this position.
+     * @return the (dequantised) Q values of the state.
+     */
+    public double[] getQValues(final long boardKey, final int numLegalMoves) {
+        return valuesOf(rowOf(boardKey, numLegalMoves), numLegalMoves);
+    }
+
+    /**
+     * Retrieves the Q values of a board state without ever adding it, as for a read-only table. For agents that only
+     * play, so that playing never grows a table that is still being trained.
+     * @param boardKey the state's key.
+     * @param numLegalMoves the number of legal moves at this position.
+     * @return the (dequantised) Q values of the state, or 0s if it is not in the table.
+     */
+    public double[] peekQValues(final long boardKey, final int numLegalMoves) {
+        return valuesOf(rows.get(boardKey), numLegalMoves);
+    }
+
+    private double[] valuesOf(final Object row, final int numLegalMoves) {
+        // An unknown state that was not added.
+        if (row == null)
+            return new double[numLegalMoves];
+
+        if (precision == QPrecision.DOUBLE)
+            return (double[]) row;
+
+        return precision.decode(row);
+    }
+
+    /**
+     * Adds a row of 0s for a board state, the length of the number of legal moves, unless the state is already in the
+     * table. Unlike {@link #getQValues(long, int)}, never decodes the row, so it is cheap to call before an update.
+     * Does nothing for a read-only table.
+     * @param boardKey the state's key.
+     * @param numLegalMoves the number of legal moves at this position.
+     */
+    public void ensureRow(final long boardKey, final int numLegalMoves) {
+        rowOf(boardKey, numLegalMoves);
+    }
+
+    /**
+     * @return the stored row of a state, added if missing, or null if the state is unknown to a read-only table.
+     */
+    private Object rowOf(final long boardKey, final int numLegalMoves) {
+        Object row = rows.get(boardKey);
+
+        if (row == null) {
+            if (readOnly)
+                return null;
+
+            final Object newRow = precision.allocate(numLegalMoves);
+            row = rows.putIfAbsent(boardKey, newRow);
+            if (row == null) {
+                row = newRow;
+                if (changed != null)
+                    changed.add(boardKey);
+            }
+        }
+
+        return row;
+    }
+
+    /**
+     * Quantises and stores a single Q value. The state must already be present within the table.
+     * @param boardKey the state's key.
+     * @param moveChoice the index of the legal move whose Q value is being updated.
+     * @param value the new Q value.
+     */
+    public void setQValue(final long boardKey, final int moveChoice, final double value) {
+        updateQValue(boardKey, moveChoice, current -> value);
+    }
+
+    /**
+     * Atomically replaces a single Q value with a function of its current value, then quantises and stores it. Other
+     * updates to the same state wait, so none are lost when several games share the table. The state must already
+     * be present within the table.
+     * @param boardKey the state's key.
+     * @param moveChoice the index of the legal move whose Q value is being updated.
+     * @param update computes the new Q value from the current, dequantised one.
+     */
+    public void updateQValue(final long boardKey, final int moveChoice, final DoubleUnaryOperator update) {
+        if (readOnly) throw new IllegalStateException("Error: attempting to update a read-only Q table.");
+
+        final Object row = rows.get(boardKey);
+
+        if (row == null)
+            throw new AssertionError("Error: the board's key is not kept in Q. Aborting.");
+
+        synchronized (stripes[Long.hashCode(boardKey) & (NUM_STRIPES - 1)]) {
+            precision.set(row, moveChoice, update.applyAsDouble(precision.get(row, moveChoice)));
+            // After the row is written, so that whoever sees the new version also sees the new Q values.
+            final GreedyCache cache = greedyCache;
+            if (cache != null)
+                cache.invalidate(boardKey);
+        }
+        if (changed != null)
+            changed.add(boardKey);
+    }
+
+    /**
+     * Starts recording which states change, so that they can be collected by {@link #takeChangedRows()}.
+     * @param includeExisting whether every state already in the table counts as changed.
+     */
+    public void trackChanges(final boolean includeExisting) {
+        if (changed == null) {
+            changed = ConcurrentHashMap.newKeySet();
+            if (includeExisting)
+                changed.addAll(rows.keySet());
+        }
+    }
+
+    /**
+     * Copies the rows of every state that changed since the previous call, and starts a new set of changes. The
+     * copies form a consistent point-in-time view of those states that remains valid while the table keeps training.
+     * @return board key -> copied row, in this table's precision.
+     */
+    public Map<Long, Object> takeChangedRows() {
+        if (changed == null) throw new AssertionError("Error: changes to Q are not being tracked. Aborting.");
+
+        final Map<Long, Object> copies = new HashMap<>(changed.size() * 2);
+        for (long key : changed)
+            copies.put(key, precision.copy(rows.get(key)));
+
+        changed.clear();
+        return copies;
+    }
+
+    /**
+     * Copies the rows of every state in the table.
+     * @return board key -> copied row, in this table's precision.
+     */
+    public Map<Long, Object> copyRows() {
+        final Map<Long, Object> copies = new HashMap<>(rows.size() * 2);
+        for (Map.Entry<Long, Object> entry : rows.entrySet())
+            copies.put(entry.getKey(), precision.copy(entry.getValue()));
+        return copies;
+    }
+
+    /**
+     * Stores whole rows, replacing any existing rows of the same states. Used when restoring from checkpoints.
+     * @param newRows board key -> row, in this table's precision.
+     */
+    public void putRows(final Map<Long, Object> newRows) {
+        if (readOnly) throw new IllegalStateException("Error: attempting to update a read-only Q table.");
+
+        for (Map.Entry<Long, Object> entry : newRows.entrySet()) {
+            if (QPrecision.of(entry.getValue()) != precision)
+                throw new IllegalArgumentException("Error: expected rows stored with " + precision + ". Aborting.");
+            rows.put(entry.getKey(), entry.getValue());
+            final GreedyCache cache = greedyCache;
+            if (cache != null)
+                cache.invalidate(entry.getKey());
+        }
+    }
+
+    /**
+     * Creates a copy of this table with every row converted to another precision.
+     * @param newPrecision the precision of the copy.
+     * @return a new Q table.
+     */
+    public QTable withPrecision(final QPrecision newPrecision) {
+        final QTable copy = new QTable(newPrecision, keys);
+        for (Map.Entry<Long, Object> entry : rows.entrySet())
+            copy.rows.put(entry.getKey(), newPrecision.encode(precision.decode(entry.getValue())));
+        return copy;
+    }
+
+    /**
+     * Estimates the average heap size of one state's row of Q values. Excludes the map entry and key, which cost
+     * the same for every precision.
+     * @return the average number of bytes used per state, or 0 if the table is empty.
+     */
+    public double bytesPerState() {
+        if (rows.isEmpty())
+            return 0;
+
+        long totalBytes = 0;
+        for (Object row : rows.values())
+            totalBytes += precision.rowBytes(precision.length(row));
+
+        return (double) totalBytes / rows.size();
+    }
+
+    /**
+     * Attaches a cache of each recent state's greedy move, replacing any previous cache. Every agent using this table
+     * then shares the cache.
+     * @param capacity the most states the cache may hold, or 0 to remove the cache.
+     */
+    public void enableGreedyCache(final int capacity) {
+        greedyCache = capacity == 0 ? null : new GreedyCache(capacity);
+    }
+
+    /**
+     * @return the cache of each recent state's greedy move, or null if there is none.
+     */
+    public GreedyCache getGreedyCache() {
+        return greedyCache;
+    }
+
+    /**
+     * Prevents any further changes to the table. Afterwards, any number of threads may read it concurrently.
+     */
+    public void makeReadOnly() {
+        readOnly = true;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public boolean containsKey(final long boardKey) {
+        return rows.containsKey(boardKey);
+    }
+
+    public Set<Long> keySet() {
+        return Collections.unmodifiableSet(rows.keySet());
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public QPrecision getPrecision() {
+        return precision;
+    }
+
+    public StateKeys getKeys() {
+        return keys;
+    }
+
+}
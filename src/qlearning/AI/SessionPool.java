@@ -0,0 +1,101 @@
+package qlearning.AI;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of lightweight Q-learning agent sessions that all share one Q table, for serving many live games at once.
+ *
+ * Each session is a QLearningAI holding only per-game state (its player ID, epsilon and move history), so a session
+ * must only play one game at a time. The Q table is shared: selecting a move only reads it and never locks, while
+ * learning sessions update it through its lock stripes. Acquiring and releasing sessions is lock-free.
+ */
+public class SessionPool {
+
+    // The Q table shared by every session.
+    private final QTable Q;
+
+    // The parameters of every session.
+    private final double alpha, gamma, epsilon;
+    private final boolean train;
+    private final int nStep;
+    private final double lambda;
+
+    // Sessions that are not currently playing a game.
+    private final ConcurrentLinkedQueue<QLearningAI> idleSessions = new ConcurrentLinkedQueue<>();
+
+    // The number of sessions ever created by this pool.
+    private final AtomicInteger numSessions = new AtomicInteger();
+
+    /**
+     * Creates a pool of sessions using the one-step backup.
+     * @param Q the Q table shared by every session.
+     * @param alpha the learning rate of the model
+     * @param gamma the future reward discount rate
+     * @param epsilon the probability the model takes a random move via an epsilon-greedy policy.
+     * @param train whether the sessions should keep learning from playing.
+     */
+    public SessionPool(final QTable Q, final double alpha, final double gamma, final double epsilon, final boolean train) {
+        this(Q, alpha, gamma, epsilon, train, 1, 0);
+    }
+
+    /**
+     * Creates a pool of sessions.
+     * @param Q the Q table shared by every session.
+     * @param alpha the learning rate of the model
+     * @param gamma the future reward discount rate
+     * @param epsilon the probability the model takes a random move via an epsilon-greedy policy.
+     * @param train whether the sessions should keep learning from playing.
+     * @param nStep the number of moves to look ahead for n-step returns. 1 gives the one-step rule.
+     * @param lambda the TD(lambda) trace decay. 0 uses n-step returns instead.
+     */
+    public SessionPool(final QTable Q, final double alpha, final double gamma, final double epsilon, final boolean train,
+                       final int nStep, final double lambda) {
+        if (Q == null) throw new NullPointerException("Error: the shared Q table must not be null.");
+        this.Q = Q;
+        this.alpha = alpha;
+        this.gamma = gamma;
+        this.epsilon = epsilon;
+        this.train = train;
+        this.nStep = nStep;
+        this.lambda = lambda;
+    }
+
+    /**
+     * Takes an idle session from the pool, or creates a new one if every session is playing.
+     * @return a session ready for initAI to be called at the start of its next game.
+     */
+    public QLearningAI acquire() {
+        final QLearningAI session = idleSessions.poll();
+        if (session != null)
+            return session;
+
+        final QLearningAI newSession = new QLearningAI(alpha, gamma, epsilon, Q, train);
+        newSession.setNStep(nStep);
+        newSession.setLambda(lambda);
+        numSessions.incrementAndGet();
+        return newSession;
+    }
+
+    /**
+     * Returns a session to the pool once its game is over (and, if learning, after it has been rewarded).
+     * @param session a session acquired from this pool.
+     */
+    public void release(final QLearningAI session) {
+        session.resetSession();
+        session.setEpsilon(epsilon);
+        idleSessions.offer(session);
+    }
+
+    /**
+     * @return the number of sessions ever created, i.e. the most games this pool has served at once.
+     */
+    public int getNumSessions() {
+        return numSessions.get();
+    }
+
+    public QTable getQ() {
+        return Q;
+    }
+
+}
@@ -1,7 +1,9 @@
 package qlearning;
 
-import main.FileHandling;
 import qlearning.learning.EpisodicGamePlayer;
+import qlearning.util.QPrecision;
+import qlearning.util.StateKeys;
+import qlearning.util.Utils;
 
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -23,6 +25,21 @@ public class Main {
         final int m = 45_000;      // The number of episodes during each trial.
         final int l = 30_000;      // Which episode to stop exploring.
         final boolean usingDynamicEps = true;
+        // The precision with which the Q values are stored in memory and in the saved model.
+        final QPrecision precision = QPrecision.DOUBLE;
+        // How board states become Q table keys. EXACT never collides, but only fits small flat boards.
+        final StateKeys keys = StateKeys.HASHCODE;
+        // The backup applied after each episode: n-step returns, or TD(lambda) when lambda > 0. n = 1 is one-step.
+        final int nStep = 1;
+        final double lambda = 0;
+        // How many episodes between background checkpoints of the Q table (0 disables them), how many checkpoints
+        // between compactions, and whether to resume a crashed run from its latest checkpoint.
+        final int CHECKPOINT_EVERY = 0;
+        final int COMPACT_EVERY = 10;
+        final boolean resume = false;
+        // The most states whose greedy move is cached, saving the scan of their Q values when revisited (0 disables it).
+        // Off by default: for small rows the cache's bookkeeping may cost more than it saves; see GreedyCacheBenchmark.
+        final int GREEDY_CACHE_CAPACITY = 0;
         // The number of times to perform training and evaluating the model.
         final int NUM_BATCHES = 3;
         // How many times to tick marks to put into the data for the purpose of creating visualizations.
@@ -38,19 +55,17 @@ public class Main {
                 gamma + "-a" + a + "-b" + b + "-l" + l + "-usingDynamicEps " + usingDynamicEps;
         final String csvName = "CSVs/" + AIName + ".csv";
 
-        String gameLocation = "resources/games/" + gameName + ".lud";
-        for (String name : FileHandling.listGames()) {
-            final String adjustedName = gameName + ".lud";
-            if (name.contains(adjustedName)) {
-                gameLocation = adjustedName;
-                break;
-            }
-        }
+        final String gameLocation = Utils.gameLocation(gameName);
 
         final Path csvFilePath = Paths.get(csvName);
 
         // Create the game player object, which handles the facilitation of AIs and playing the game.
         EpisodicGamePlayer gamePlayer = new EpisodicGamePlayer(gameLocation, AIName);
+        gamePlayer.setPrecision(precision);
+        gamePlayer.setKeys(keys);
+        gamePlayer.setBackup(nStep, lambda);
+        gamePlayer.setCheckpointing(CHECKPOINT_EVERY, COMPACT_EVERY, resume);
+        gamePlayer.setGreedyCache(GREEDY_CACHE_CAPACITY);
 
 
         // Create the CSV file that stores how well the model has performed and append headers
@@ -0,0 +1,71 @@
+package qlearning.experiments;
+
+import qlearning.learning.EpisodicGamePlayer;
+import qlearning.util.Utils;
+
+/**
+ * Compares how many training episodes each backup needs before the Q-learning AI's greedy policy wins 90% of its
+ * games against a RandomAI. The one-step rule is compared against n-step returns and TD(lambda) for several lambdas.
+ */
+public class BackupComparison {
+
+    public static void main(String[] args) {
+
+        // The Q-learning AI model parameters, matching those used in Main.
+        final double alpha = 0.1;
+        final double gamma = 0.9;
+        final double a = 0.5;
+        final double b = 0;
+        final int l = 30_000;
+        // The most episodes to train for before giving up on reaching the target.
+        final int MAX_EPISODES = 100_000;
+        final double TARGET_WIN_RATE = 0.90;
+        final int EVALUATE_EVERY = 500;
+        final int EVALUATION_GAMES = 500;
+        // The number of independent trainings averaged for each backup.
+        final int NUM_TRIALS = 3;
+
+        final String[] gameNames = {"tictactoe", "connect4"};
+
+        // Each backup as {n, lambda}. n = 1 with lambda = 0 is the one-step rule.
+        final double[][] backups = {
+                {1, 0},
+                {3, 0},
+                {5, 0},
+                {1, 0.3},
+                {1, 0.6},
+                {1, 0.9},
+                {1, 1.0},
+        };
+
+        for (String gameName : gameNames) {
+            final EpisodicGamePlayer gamePlayer = new EpisodicGamePlayer(Utils.gameLocation(gameName), gameName + "-backup-comparison");
+
+            System.out.println("Episodes to a " + Math.round(100 * TARGET_WIN_RATE) + "% win rate on " + gameName + ":");
+            System.out.printf("%-16s %16s %10s%n", "Backup", "Mean episodes", "Reached");
+
+            for (double[] backup : backups) {
+                final int nStep = (int) backup[0];
+                final double lambda = backup[1];
+                gamePlayer.setBackup(nStep, lambda);
+
+                long totalEpisodes = 0;
+                int numReached = 0;
+                for (int trial = 0; trial < NUM_TRIALS; trial++) {
+                    final int episodes = gamePlayer.performTrainingUntilWinRate(MAX_EPISODES, l, alpha, gamma, a, b,
+                            TARGET_WIN_RATE, EVALUATE_EVERY, EVALUATION_GAMES);
+                    if (episodes != -1) {
+                        totalEpisodes += episodes;
+                        numReached++;
+                    }
+                }
+
+                final String name = lambda > 0 ? "TD(" + lambda + ")" : (nStep == 1 ? "one-step" : nStep + "-step");
+                final String mean = numReached == 0 ? "> " + MAX_EPISODES : String.valueOf(totalEpisodes / numReached);
+                System.out.printf("%-16s %16s %7d/%d%n", name, mean, numReached, NUM_TRIALS);
+            }
+            System.out.println();
+        }
+    }
+
+}
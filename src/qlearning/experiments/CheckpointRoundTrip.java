@@ -0,0 +1,98 @@
+package qlearning.experiments;
+
+import qlearning.AI.QTable;
+import qlearning.learning.Checkpointer;
+import qlearning.util.QPrecision;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Checks that incremental checkpoints restore the Q table being trained exactly, for every precision.
+ *
+ * Training is simulated by random updates to a random set of states, checkpointing every few episodes and compacting
+ * every few checkpoints, so that the restored table is built from a compacted base plus later deltas. Closing the
+ * checkpointer compares the restored table with the live one, and a completed run must no longer be resumable.
+ *
+ * Midway, one checkpoint is made to fail by putting a directory where its temporary file would be written. The run
+ * must then refuse to be resumed until the next checkpoint has written every state again.
+ */
+public class CheckpointRoundTrip {
+
+    public static void main(String[] args) {
+
+        final int NUM_EPISODES = 2_000;
+        final int CHECKPOINT_EVERY = 50;
+        final int COMPACT_EVERY = 3;
+        // The number of distinct states, the most legal moves in a state, and the updates made per episode.
+        final int NUM_STATES = 5_000;
+        final int MAX_LEGAL_MOVES = 9;
+        final int UPDATES_PER_EPISODE = 20;
+        // Which checkpoint fails to be written.
+        final int FAILING_CHECKPOINT = 17;
+
+        boolean allPassed = true;
+        for (QPrecision precision : QPrecision.values()) {
+            final String AIName = "checkpoint-round-trip-" + precision.name().toLowerCase();
+            final Random random = new Random(precision.ordinal());
+
+            final QTable Q = new QTable(precision);
+            final Checkpointer checkpointer = new Checkpointer(AIName, Q, COMPACT_EVERY, false);
+            boolean gapRefused = true;
+
+            for (int episode = 0; episode < NUM_EPISODES; episode++) {
+                for (int u = 0; u < UPDATES_PER_EPISODE; u++) {
+                    final long key = random.nextInt(NUM_STATES);
+                    // Every state always has the same number of legal moves.
+                    final int numLegalMoves = 1 + (int) (key % MAX_LEGAL_MOVES);
+                    final double target = 2 * random.nextDouble() - 1;
+
+                    Q.ensureRow(key, numLegalMoves);
+                    Q.updateQValue(key, random.nextInt(numLegalMoves), q -> 0.9 * q + 0.1 * target);
+                }
+
+                if ((episode + 1) % CHECKPOINT_EVERY == 0) {
+                    final int checkpointNumber = (episode + 1) / CHECKPOINT_EVERY;
+                    final File blocker = new File(String.format("resources/checkpoints/%s/delta-%08d.bin.tmp", AIName, checkpointNumber));
+                    if (checkpointNumber == FAILING_CHECKPOINT && !blocker.mkdirs())
+                        System.err.println("Error: could not block checkpoint " + checkpointNumber + ".");
+
+                    checkpointer.checkpoint(episode + 1, null);
+
+                    if (checkpointNumber == FAILING_CHECKPOINT) {
+                        gapRefused &= waitForGap(AIName) && Checkpointer.loadLatest(AIName) == null;
+                        if (!blocker.delete())
+                            System.err.println("Error: could not unblock checkpoint " + checkpointNumber + ".");
+                    }
+                }
+            }
+
+            final boolean restored = checkpointer.close(NUM_EPISODES, null);
+            final boolean completed = Checkpointer.loadLatest(AIName) == null;
+            allPassed &= restored && completed && gapRefused;
+
+            System.out.printf("%-8s %6d states: refuses to resume across the gap %-5s, restores the live table %-5s, marked completed %-5s%n",
+                    precision, Q.size(), gapRefused, restored, completed);
+        }
+
+        System.out.println(allPassed ? "All checkpoint round trips passed." : "Error: a checkpoint round trip failed.");
+    }
+
+    /**
+     * Waits for the background writer to record the failed checkpoint.
+     * @return whether the failure was recorded within a few seconds.
+     */
+    private static boolean waitForGap(final String AIName) {
+        final File marker = new File("resources/checkpoints/" + AIName + "/gap");
+        for (int attempt = 0; attempt < 100 && !marker.exists(); attempt++) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return marker.exists();
+    }
+
+}
@@ -0,0 +1,113 @@
+package qlearning.experiments;
+
+import game.Game;
+import qlearning.AI.GreedyCache;
+import qlearning.AI.QLearningAI;
+import qlearning.AI.QTable;
+import qlearning.learning.EpisodicGamePlayer;
+import qlearning.util.QPrecision;
+import qlearning.util.Utils;
+import util.AI;
+import util.Context;
+import util.Trial;
+import utils.RandomAI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how often a {@link GreedyCache} answers selectAction for repeated positions, and how much time it saves.
+ *
+ * For each game, a Q table is first trained by self-play with the cache attached, reporting the hit rate while the
+ * table keeps changing. The trained table is then frozen, and a greedy (epsilon = 0) agent plays against a RandomAI
+ * without and then with the cache, timing only the agent's selectAction calls.
+ */
+public class GreedyCacheBenchmark {
+
+    public static void main(String[] args) {
+
+        final String[] gameNames = {"tictactoe", "connect4"};
+        // The number of self-play games used to train each game's Q table.
+        final int NUM_TRAINING_GAMES = 20_000;
+        // The number of games played against a RandomAI for each measurement.
+        final int NUM_EVALUATION_GAMES = 20_000;
+        final int CACHE_CAPACITY = 1 << 16;
+        final double alpha = 0.1;
+        final double gamma = 0.9;
+        final double epsilon = 0.2;
+
+        for (String gameName : gameNames) {
+            final Game game = Utils.loadGame(Utils.gameLocation(gameName));
+
+            // Train by self-play, both sides sharing the table and its cache.
+            final QTable Q = new QTable(QPrecision.DOUBLE);
+            Q.enableGreedyCache(CACHE_CAPACITY);
+            final List<AI> trainees = Arrays.asList(null,
+                    new QLearningAI(alpha, gamma, epsilon, Q, true), new QLearningAI(alpha, gamma, epsilon, Q, true));
+            playGames(game, trainees, NUM_TRAINING_GAMES);
+            final GreedyCache trainingCache = Q.getGreedyCache();
+            Q.makeReadOnly();
+
+            // Warm up the JIT before measuring.
+            Q.enableGreedyCache(0);
+            final QLearningAI greedy = new QLearningAI(alpha, gamma, 0, Q, false);
+            final List<AI> players = Arrays.asList(null, greedy, new RandomAI());
+            playGames(game, players, NUM_EVALUATION_GAMES / 4);
+
+            final long[] uncached = playGames(game, players, NUM_EVALUATION_GAMES);
+            Q.enableGreedyCache(CACHE_CAPACITY);
+            final long[] cached = playGames(game, players, NUM_EVALUATION_GAMES);
+            final GreedyCache evaluationCache = Q.getGreedyCache();
+
+            final double uncachedNanos = (double) uncached[0] / uncached[1];
+            final double cachedNanos = (double) cached[0] / cached[1];
+
+            System.out.println("Greedy move cache on " + gameName + " (" + Q.size() + " states in Q, cache of " +
+                    evaluationCache.getCapacity() + " states):");
+            System.out.printf("\tTraining, epsilon = %.2f: hit rate %.2f%% of %d lookups, %d invalidations%n",
+                    epsilon, 100.0 * trainingCache.hitRate(), trainingCache.getHits() + trainingCache.getMisses(),
+                    trainingCache.getInvalidations());
+            System.out.printf("\tGreedy vs RandomAI: hit rate %.2f%% of %d lookups%n",
+                    100.0 * evaluationCache.hitRate(), evaluationCache.getHits() + evaluationCache.getMisses());
+            System.out.printf("\tselectAction: %.0f ns without the cache, %.0f ns with it (%.1f%% saved)%n",
+                    uncachedNanos, cachedNanos, 100.0 * (1 - cachedNanos / uncachedNanos));
+            System.out.println();
+        }
+    }
+
+    /**
+     * Plays games between the given AIs, rewarding any Q-Learning AIs at the end of each game.
+     * @param players the AI of each player, indexed from 1.
+     * @return the total nanoseconds spent in the Q-Learning AIs' selectAction, and the number of those calls.
+     */
+    private static long[] playGames(final Game game, final List<AI> players, final int numGames) {
+        final Context context = new Context(game, new Trial(game));
+
+        // Time the Q-Learning AIs' decisions only.
+        final List<AI> timedPlayers = new ArrayList<>(players.size());
+        final List<TimedAI> timers = new ArrayList<>();
+        for (AI ai : players) {
+            if (ai instanceof QLearningAI) {
+                final TimedAI timer = new TimedAI(ai);
+                timers.add(timer);
+                timedPlayers.add(timer);
+            } else {
+                timedPlayers.add(ai);
+            }
+        }
+
+        for (int g = 0; g < numGames; g++) {
+            final double[] ranking = EpisodicGamePlayer.playEpisode(timedPlayers, game, context, 0, null);
+            EpisodicGamePlayer.rewardQLearningAIs(context, players, ranking);
+        }
+
+        final long[] totals = new long[2];
+        for (TimedAI timer : timers) {
+            totals[0] += timer.getTotalNanos();
+            totals[1] += timer.getNumCalls();
+        }
+        return totals;
+    }
+
+}
@@ -0,0 +1,88 @@
+package qlearning.experiments;
+
+import game.Game;
+import qlearning.learning.EpisodicGamePlayer;
+import qlearning.util.KeyVerifier;
+import qlearning.util.PackedBoard;
+import qlearning.util.StateKeys;
+import qlearning.util.Utils;
+import util.AI;
+import util.Context;
+import util.Trial;
+import utils.RandomAI;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Audits how often the board hashcode used as a Q table key is shared by distinct boards, and estimates the memory
+ * each key strategy costs per state.
+ *
+ * Two RandomAIs play many games of each game. After every move, the board's hashcode is checked against its exact
+ * packed encoding by a {@link KeyVerifier}.
+ */
+public class KeyAudit {
+
+    // Approximate heap costs on a 64-bit JVM with compressed pointers: a boxed Long, a hash map node, and the share of
+    // the hash map's table each entry uses at the default load factor.
+    private static final int BOXED_LONG_BYTES = 16;
+    private static final int MAP_NODE_BYTES = 32;
+    private static final int MAP_SLOT_BYTES = 6;
+
+    public static void main(String[] args) {
+
+        final String[] gameNames = {"tictactoe", "tictactoe7", "connect4"};
+        // The number of random games played for each game.
+        final int NUM_GAMES = 20_000;
+
+        for (String gameName : gameNames) {
+            final Game game = Utils.loadGame(Utils.gameLocation(gameName));
+            final KeyVerifier verifier = new KeyVerifier();
+            final Set<PackedBoard> boards = new HashSet<>();
+
+            final ArrayList<AI> ais = new ArrayList<>();
+            ais.add(null);
+            for (int p = 1; p <= game.players().count(); p++)
+                ais.add(new RandomAI());
+
+            final Context context = new Context(game, new Trial(game));
+
+            for (int g = 0; g < NUM_GAMES; g++)
+                EpisodicGamePlayer.playEpisode(ais, game, context, 0, after -> {
+                    verifier.verify(Utils.boardToHashcode(after), after);
+                    boards.add(PackedBoard.of(after));
+                });
+
+            long packedBytes = 0;
+            int maxWords = 0;
+            for (PackedBoard board : boards) {
+                packedBytes += board.estimatedBytes();
+                maxWords = Math.max(maxWords, board.numWords());
+            }
+            final double packedBytesPerState = boards.isEmpty() ? 0 : (double) packedBytes / boards.size();
+
+            final int entryBytes = BOXED_LONG_BYTES + MAP_NODE_BYTES + MAP_SLOT_BYTES;
+            final boolean exactFits = StateKeys.EXACT.supports(game);
+
+            System.out.println("Key audit for " + gameName + " over " + NUM_GAMES + " random games:");
+            System.out.printf("\tDistinct boards: %d, distinct hashcodes: %d, hashcodes shared by several boards: %d%n",
+                    boards.size(), verifier.getNumKeys(), verifier.getNumCollidedKeys());
+            System.out.printf("\tLookups landing on another board's hashcode: %d/%d = %.4f%%%n",
+                    verifier.getNumCollisions(), verifier.getNumChecks(), 100.0 * verifier.collisionRate());
+            System.out.printf("\tPacked board size: up to %d words%n", maxWords);
+            System.out.println("\tEstimated key memory per state:");
+            System.out.printf("\t\t%-28s %8d bytes%n", "HASHCODE", entryBytes);
+            if (exactFits)
+                System.out.printf("\t\t%-28s %8d bytes%n", "EXACT (packed into a long)", entryBytes);
+            else
+                System.out.printf("\t\t%-28s %8s%n", "EXACT (packed into a long)", "n/a");
+            System.out.printf("\t\t%-28s %8.1f bytes%n", "PackedBoard object as key",
+                    MAP_NODE_BYTES + MAP_SLOT_BYTES + packedBytesPerState);
+            System.out.printf("\t\t%-28s %8.1f bytes%n", "HASHCODE + verification",
+                    entryBytes + MAP_NODE_BYTES + MAP_SLOT_BYTES + BOXED_LONG_BYTES + packedBytesPerState);
+            System.out.println();
+        }
+    }
+
+}
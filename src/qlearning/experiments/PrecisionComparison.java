@@ -0,0 +1,128 @@
+package qlearning.experiments;
+
+import qlearning.AI.QLearningAI;
+import qlearning.AI.QTable;
+import qlearning.learning.EpisodicGamePlayer;
+import qlearning.util.QPrecision;
+import qlearning.util.Utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Checks that storing the Q values with a reduced precision does not change how well a trained model plays.
+ *
+ * A model is trained with double precision, then converted to every other precision. For each precision this reports
+ * the bytes used per state, the size of the saved model, the fraction of states whose greedy move is unchanged, and
+ * the win rate against a RandomAI.
+ *
+ * A second model is then trained from scratch with each precision, so that every update is quantised as it is
+ * learned, and the win rates against a RandomAI are compared.
+ */
+public class PrecisionComparison {
+
+    public static void main(String[] args) {
+
+        // The Q-learning AI model parameters, matching those used in Main.
+        final double alpha = 0.1;
+        final double gamma = 0.9;
+        final double a = 0.5;
+        final double b = 0;
+        final int m = 45_000;
+        final int l = 30_000;
+        final int REPORT_EVERY = 3_000;
+        // The number of evaluation games played for each precision.
+        final int NUM_EVALUATION_GAMES = 10_000;
+        final String gameName = "tictactoe";
+
+        final String AIName = gameName + "-precision-comparison";
+
+        final EpisodicGamePlayer gamePlayer = new EpisodicGamePlayer(Utils.gameLocation(gameName), AIName);
+        gamePlayer.setPrecision(QPrecision.DOUBLE);
+        gamePlayer.performTrainingVSRandomAI(m, l, alpha, gamma, a+b, a, b, REPORT_EVERY, false, true);
+
+        final QTable trained = Utils.loadAI(AIName + ".bin");
+        if (trained == null) throw new NullPointerException("The trained Q table could not be loaded. Aborting.");
+
+        System.out.println("Precision comparison on " + gameName + " with " + trained.size() + " states.");
+        System.out.printf("%-8s %14s %14s %16s %12s%n", "Precision", "Bytes/state", "File bytes", "Greedy agreement", "Win rate");
+
+        for (QPrecision precision : QPrecision.values()) {
+            final QTable converted = trained.withPrecision(precision);
+
+            final String fileName = AIName + "-" + precision.name().toLowerCase() + ".bin";
+            long fileBytes = -1;
+            try {
+                Utils.saveAI(fileName, converted);
+                fileBytes = Files.size(Paths.get("resources/AIs/" + fileName));
+            } catch (IOException e) {
+                System.err.println("Error: could not save or measure " + fileName + ".");
+            }
+
+            final double agreement = greedyAgreement(trained, converted);
+
+            // Evaluating a writable table would add a row for every unseen state, inflating the bytes per state.
+            converted.makeReadOnly();
+
+            final QLearningAI qAI = new QLearningAI(alpha, gamma, 0, converted, false);
+            final double winRate = gamePlayer.performEvaluationVSRandomAI(qAI, NUM_EVALUATION_GAMES);
+
+            System.out.printf("%-9s %14.2f %14d %15.4f%% %11.4f%%%n", precision, converted.bytesPerState(),
+                    fileBytes, 100.0 * agreement, 100.0 * winRate);
+        }
+
+        System.out.println();
+        System.out.println("Trained with each precision:");
+        System.out.printf("%-8s %14s %10s %12s%n", "Precision", "Bytes/state", "States", "Win rate");
+
+        for (QPrecision precision : QPrecision.values()) {
+            final String trainedName = AIName + "-trained-" + precision.name().toLowerCase();
+
+            final EpisodicGamePlayer precisionPlayer = new EpisodicGamePlayer(Utils.gameLocation(gameName), trainedName);
+            precisionPlayer.setPrecision(precision);
+            precisionPlayer.performTrainingVSRandomAI(m, l, alpha, gamma, a+b, a, b, REPORT_EVERY, false, true);
+
+            final QTable learned = Utils.loadAI(trainedName + ".bin");
+            if (learned == null) throw new NullPointerException("The Q table trained with " + precision + " could not be loaded. Aborting.");
+            learned.makeReadOnly();
+
+            final QLearningAI qAI = new QLearningAI(alpha, gamma, 0, learned, false);
+            final double winRate = precisionPlayer.performEvaluationVSRandomAI(qAI, NUM_EVALUATION_GAMES);
+
+            System.out.printf("%-9s %14.2f %10d %11.4f%%%n", precision, learned.bytesPerState(), learned.size(),
+                    100.0 * winRate);
+        }
+    }
+
+    /**
+     * Determines the fraction of states whose greedy (arg max) move is the same in both Q tables. States where every
+     * Q value is tied are skipped, as any move is greedy.
+     */
+    private static double greedyAgreement(final QTable reference, final QTable converted) {
+        final QLearningAI helper = new QLearningAI(0, 0, 0, reference, false);
+        int compared = 0, agreed = 0;
+
+        for (long key : reference.keySet()) {
+            final double[] expected = reference.getQValues(key, 0);
+            if (helper.max(expected) == min(expected))
+                continue;
+
+            final double[] actual = converted.getQValues(key, expected.length);
+            compared++;
+            if (expected[helper.argmax(expected)] == expected[helper.argmax(actual)])
+                agreed++;
+        }
+
+        return compared == 0 ? 1.0 : (double) agreed / compared;
+    }
+
+    private static double min(final double[] array) {
+        double minValue = Double.MAX_VALUE;
+        for (double value : array)
+            if (value < minValue)
+                minValue = value;
+        return minValue;
+    }
+
+}
@@ -0,0 +1,100 @@
+package qlearning.experiments;
+
+import qlearning.AI.QTable;
+import qlearning.tournament.Tournament;
+import qlearning.util.ModelRegistry;
+import qlearning.util.Utils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plays a round-robin tournament between the saved models of a game in "resources/AIs/" and prints the win matrix and
+ * the Elo rating of each model.
+ *
+ * Models are chosen by file name, and the copies saved by PrecisionComparison are left out. A chosen model is still
+ * skipped if few of the game's positions are in its Q table, as it was then most likely trained on another game.
+ */
+public class RoundRobinTournament {
+
+    public static void main(String[] args) {
+
+        // Which game to play, and the file names of the models trained on it.
+        final String gameName = "tictactoe";
+        final String MODEL_NAMES = "(?i)(q-)?tictactoe([-.].*)?\\.bin";
+        // The number of games each ordered pair of models plays, i.e. half the games between two models.
+        final int GAMES_PER_PAIRING = 2_000;
+        final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+        // The number of random moves every game opens with. The models play greedily, so without these every game
+        // between the same two models in the same seats would be identical.
+        final int OPENING_PLIES = 2;
+        // The fraction of the positions of random games a model's Q table must hold, and how many games to check.
+        final double MIN_KEY_COVERAGE = 0.05;
+        final int COVERAGE_GAMES = 200;
+
+        final File[] modelFiles = new File("resources/AIs").listFiles((dir, name) ->
+                name.matches(MODEL_NAMES) && !name.contains("-precision-comparison"));
+        if (modelFiles == null || modelFiles.length < 2) {
+            System.err.println("Error: at least two " + gameName + " models are needed in resources/AIs/ for a tournament.");
+            return;
+        }
+        Arrays.sort(modelFiles);
+
+        final ModelRegistry registry = new ModelRegistry();
+        final Tournament tournament = new Tournament(Utils.loadGame(Utils.gameLocation(gameName)), OPENING_PLIES);
+        for (File modelFile : modelFiles) {
+            final QTable Q = registry.load(modelFile.getName());
+            if (Q == null)
+                continue;
+
+            final double coverage = tournament.keyCoverage(Q, COVERAGE_GAMES);
+            if (coverage < MIN_KEY_COVERAGE) {
+                System.out.printf("Skipping %s: only %.2f%% of the positions of random %s games are in it.%n",
+                        modelFile.getName(), 100.0 * coverage, gameName);
+                continue;
+            }
+            tournament.addModel(modelFile.getName(), Q);
+        }
+
+        final List<String> names = tournament.getNames();
+        final int n = names.size();
+        if (n < 2) {
+            System.err.println("Error: at least two " + gameName + " models are needed in resources/AIs/ for a tournament.");
+            return;
+        }
+        System.out.println("Playing " + n + " models (" + registry.size() + " distinct Q tables) on " + gameName +
+                " with " + NUM_THREADS + " threads, opening every game with " + OPENING_PLIES + " random moves.");
+
+        final long start = System.nanoTime();
+        tournament.run(GAMES_PER_PAIRING, NUM_THREADS);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long totalGames = (long) n * (n - 1) * GAMES_PER_PAIRING;
+        System.out.printf("Played %d games in %.2f s (%.0f games/s).%n%n", totalGames, seconds, totalGames / seconds);
+
+        // Win matrix: row i, column j is the percentage of games model i won against model j.
+        System.out.println("Win matrix (row vs column, % of games won):");
+        for (int i = 0; i < n; i++) {
+            System.out.printf("%3d %-28s", i, names.get(i));
+            for (int j = 0; j < n; j++) {
+                if (i == j)
+                    System.out.printf("%8s", "-");
+                else
+                    System.out.printf("%8.2f", 100.0 * tournament.getWins(i, j) / tournament.gamesBetween(i, j));
+            }
+            System.out.println();
+        }
+        System.out.println();
+
+        final double[] ratings = tournament.eloRatings();
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, (x, y) -> Double.compare(ratings[y], ratings[x]));
+
+        System.out.println("Elo ratings:");
+        for (int i : order)
+            System.out.printf("%-32s %8.1f%n", names.get(i), ratings[i]);
+    }
+
+}
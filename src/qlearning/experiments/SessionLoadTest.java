@@ -0,0 +1,151 @@
+package qlearning.experiments;
+
+import game.Game;
+import qlearning.AI.QLearningAI;
+import qlearning.AI.QTable;
+import qlearning.AI.SessionPool;
+import qlearning.learning.EpisodicGamePlayer;
+import qlearning.util.Utils;
+import util.AI;
+import util.Context;
+import util.Trial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load tests one loaded model serving hundreds of simultaneous games through a {@link SessionPool}, and reports the
+ * latency distribution of selectAction.
+ *
+ * Every game runs on its own thread and is played between two sessions of the same pool. When learning, each game's
+ * sessions are rewarded at the end, so the shared Q table is updated concurrently as well as read.
+ */
+public class SessionLoadTest {
+
+    public static void main(String[] args) throws InterruptedException {
+
+        final String gameName = "tictactoe";
+        final String modelName = "Q-TicTacToe-0-0-1.bin";
+        // How many games are played at the same time, and how many games each of them plays in a row.
+        final int NUM_CONCURRENT_GAMES = 500;
+        final int GAMES_PER_THREAD = 50;
+        // Whether the sessions keep learning, which makes them update the shared Q table concurrently.
+        final boolean LEARN = true;
+        final double alpha = 0.1;
+        final double gamma = 0.9;
+        final double epsilon = 0.1;
+
+        final Game game = Utils.loadGame(Utils.gameLocation(gameName));
+        final QTable Q = Utils.loadAI(modelName);
+        if (Q == null) throw new NullPointerException("The model " + modelName + " could not be loaded. Aborting.");
+        if (!LEARN)
+            Q.makeReadOnly();
+
+        final SessionPool pool = new SessionPool(Q, alpha, gamma, epsilon, LEARN);
+
+        // Every thread waits for the others, so that the games really are simultaneous.
+        final CountDownLatch startingGate = new CountDownLatch(1);
+        final List<Callable<long[]>> games = new ArrayList<>();
+        for (int i = 0; i < NUM_CONCURRENT_GAMES; i++)
+            games.add(() -> {
+                startingGate.await();
+                return playGames(game, pool, GAMES_PER_THREAD);
+            });
+
+        final ExecutorService threads = Executors.newFixedThreadPool(NUM_CONCURRENT_GAMES);
+        final List<Future<long[]>> results = new ArrayList<>();
+        for (Callable<long[]> task : games)
+            results.add(threads.submit(task));
+
+        final long start = System.nanoTime();
+        startingGate.countDown();
+
+        final List<long[]> perThreadLatencies = new ArrayList<>();
+        try {
+            for (Future<long[]> result : results)
+                perThreadLatencies.add(result.get());
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error: a game failed during the load test. Aborting.", e.getCause());
+        } finally {
+            threads.shutdown();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        int numCalls = 0;
+        for (long[] latencies : perThreadLatencies)
+            numCalls += latencies.length;
+        final long[] latencies = new long[numCalls];
+        int offset = 0;
+        for (long[] threadLatencies : perThreadLatencies) {
+            System.arraycopy(threadLatencies, 0, latencies, offset, threadLatencies.length);
+            offset += threadLatencies.length;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println("Load test: " + NUM_CONCURRENT_GAMES + " simultaneous games of " + gameName + " against " +
+                modelName + (LEARN ? " (learning)" : " (read-only)") + ".");
+        System.out.printf("Played %d games in %.2f s using %d sessions, %d states in Q.%n",
+                NUM_CONCURRENT_GAMES * GAMES_PER_THREAD, seconds, pool.getNumSessions(), Q.size());
+        System.out.printf("selectAction calls: %d (%.0f/s)%n", numCalls, numCalls / seconds);
+        System.out.printf("selectAction latency: p50 %.1f us, p90 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.90) / 1e3, percentile(latencies, 0.99) / 1e3,
+                percentile(latencies, 0.999) / 1e3, latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e3);
+    }
+
+    /**
+     * Plays games one after another, each between two sessions acquired from the pool.
+     * @return the latency of every selectAction call, in nanoseconds.
+     */
+    private static long[] playGames(final Game game, final SessionPool pool, final int numGames) {
+        final Latencies latencies = new Latencies();
+
+        for (int g = 0; g < numGames; g++) {
+            final Context context = new Context(game, new Trial(game));
+            final List<QLearningAI> sessions = Arrays.asList(null, pool.acquire(), pool.acquire());
+            final List<AI> timers = Arrays.asList(null, new TimedAI(sessions.get(1)), new TimedAI(sessions.get(2)));
+
+            final double[] ranking = EpisodicGamePlayer.playEpisode(timers, game, context, 0, null);
+
+            EpisodicGamePlayer.rewardQLearningAIs(context, sessions, ranking);
+            for (int p = 1; p < sessions.size(); p++) {
+                latencies.add(((TimedAI) timers.get(p)).getNanos());
+                pool.release(sessions.get(p));
+            }
+        }
+
+        return latencies.toArray();
+    }
+
+    /**
+     * Records the latency of every selectAction call of a thread's games.
+     */
+    private static final class Latencies {
+        private long[] values = new long[64];
+        private int size = 0;
+
+        void add(final long[] nanos) {
+            while (size + nanos.length > values.length)
+                values = Arrays.copyOf(values, 2 * values.length);
+            System.arraycopy(nanos, 0, values, size, nanos.length);
+            size += nanos.length;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static long percentile(final long[] sorted, final double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+}
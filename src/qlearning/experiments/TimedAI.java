@@ -0,0 +1,73 @@
+package qlearning.experiments;
+
+import game.Game;
+import util.AI;
+import util.Context;
+import util.Move;
+
+import java.util.Arrays;
+
+/**
+ * Wraps an AI to record how long each of its selectAction calls takes, so that experiments can time an agent's own
+ * decisions while the games are still played through Ludii's model like any other.
+ */
+final class TimedAI extends AI {
+
+    private final AI ai;
+
+    // The duration of every selectAction call so far, in nanoseconds.
+    private long[] nanos = new long[64];
+    private int numCalls = 0;
+
+    TimedAI(final AI ai) {
+        this.ai = ai;
+        this.friendlyName = ai.friendlyName();
+    }
+
+    @Override
+    public Move selectAction(final Game game, final Context context, final double maxSeconds, final int maxIterations,
+                             final int maxDepth) {
+        final long start = System.nanoTime();
+        final Move move = ai.selectAction(game, context, maxSeconds, maxIterations, maxDepth);
+        final long elapsed = System.nanoTime() - start;
+
+        if (numCalls == nanos.length)
+            nanos = Arrays.copyOf(nanos, 2 * nanos.length);
+        nanos[numCalls++] = elapsed;
+        return move;
+    }
+
+    @Override
+    public void initAI(final Game game, final int playerID) {
+        ai.initAI(game, playerID);
+    }
+
+    @Override
+    public void closeAI() {
+        ai.closeAI();
+    }
+
+    @Override
+    public boolean supportsGame(final Game game) {
+        return ai.supportsGame(game);
+    }
+
+    /**
+     * @return the duration of every selectAction call so far, in nanoseconds.
+     */
+    long[] getNanos() {
+        return Arrays.copyOf(nanos, numCalls);
+    }
+
+    long getTotalNanos() {
+        long total = 0;
+        for (int i = 0; i < numCalls; i++)
+            total += nanos[i];
+        return total;
+    }
+
+    int getNumCalls() {
+        return numCalls;
+    }
+
+}
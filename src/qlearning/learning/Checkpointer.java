@@ -0,0 +1,356 @@
+package qlearning.learning;
+
+import qlearning.AI.QTable;
+import qlearning.util.QPrecision;
+import qlearning.util.StateKeys;
+import qlearning.util.Tuple;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Incrementally checkpoints a Q table while it is being trained, so that a run can resume after a crash.
+ *
+ * Each checkpoint only copies the rows of states that changed since the previous checkpoint. The copy is taken on the
+ * training thread between episodes, which gives a consistent point-in-time view, and is then written as a delta file
+ * by a background thread so that training never waits for disk. Every compactEvery deltas, the background thread also
+ * merges the latest base file and its deltas into a new base file and deletes the merged files.
+ *
+ * All files live in "resources/checkpoints/AIName/". Every file holds the episode it was taken at, the trainer's
+ * progress (such as its win counts) at that episode, the precision and key strategy of the Q table, and a map of
+ * board key -> row of Q values. Once a run closes successfully, and its
+ * checkpoints have been checked to restore the live table exactly, a marker file records that the run completed, so
+ * that it is never mistaken for a crashed run and resumed.
+ *
+ * If a checkpoint fails to be written, its states would be missing from every later restore. A marker file records
+ * the gap, so that the run cannot be resumed from it, and compaction stops. The next checkpoint then writes every
+ * state as a new base, which closes the gap and removes the marker.
+ */
+public class Checkpointer {
+
+    private static final String BASE_PREFIX = "base-";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final String EXTENSION = ".bin";
+    private static final String COMPLETED_MARKER = "completed";
+    private static final String GAP_MARKER = "gap";
+
+    // The directory holding this run's checkpoints.
+    private final Path directory;
+
+    // The Q table being trained.
+    private final QTable Q;
+
+    // How many deltas are written between compactions.
+    private final int compactEvery;
+
+    // The sequence number of the most recently submitted checkpoint.
+    private int sequence;
+
+    // Writes deltas and compacts them, one task at a time, off the training thread.
+    private final ExecutorService writer;
+
+    // Whether a checkpoint failed to be written, so that the next one must write every state.
+    private final AtomicBoolean needsFullBase = new AtomicBoolean(false);
+
+    /**
+     * Starts checkpointing a Q table. When resuming, any existing checkpoints are continued; otherwise they are
+     * removed.
+     * @param AIName the name of the run, which names the checkpoint directory.
+     * @param Q the Q table being trained.
+     * @param compactEvery how many deltas are written between compactions.
+     * @param resume whether the Q table was restored from this run's checkpoints.
+     */
+    public Checkpointer(final String AIName, final QTable Q, final int compactEvery, final boolean resume) {
+        if (compactEvery < 1) throw new IllegalArgumentException("Error: compactEvery must be at least 1, but was " + compactEvery + ".");
+
+        this.directory = checkpointDirectory(AIName);
+        this.Q = Q;
+        this.compactEvery = compactEvery;
+
+        try {
+            Files.createDirectories(directory);
+            Files.deleteIfExists(directory.resolve(COMPLETED_MARKER));
+            if (!resume) {
+                for (Path file : listCheckpoints(directory, BASE_PREFIX, DELTA_PREFIX))
+                    Files.delete(file);
+                Files.deleteIfExists(directory.resolve(GAP_MARKER));
+            }
+        } catch (IOException e) {
+            System.err.println("Error: Could not prepare the checkpoint directory " + directory + ".");
+            e.printStackTrace();
+        }
+
+        this.sequence = latestSequence(directory);
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Q checkpoint writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // A resumed table holds nothing that is not already checkpointed.
+        Q.trackChanges(!resume);
+    }
+
+    /**
+     * Captures the states that changed since the previous checkpoint and writes them in the background. After a
+     * failed write, captures every state instead. Must be called from the training thread, between episodes.
+     * @param episode the number of episodes trained so far, which determines the epsilon schedule on resuming.
+     * @param progress the trainer's progress at this episode, restored along with the table, or null.
+     */
+    public void checkpoint(final int episode, final Serializable progress) {
+        final Map<Long, Object> changedRows = Q.takeChangedRows();
+        final boolean fullBase = needsFullBase.getAndSet(false);
+        final Map<Long, Object> rows = fullBase ? Q.copyRows() : changedRows;
+        final int checkpointSequence = ++sequence;
+
+        writer.execute(() -> {
+            try {
+                if (fullBase) {
+                    writeCheckpoint(checkpointFile(directory, BASE_PREFIX, checkpointSequence), episode,
+                            progress, Q.getPrecision(), Q.getKeys(), rows);
+                    // The new base holds every state, so it replaces every earlier file and closes the gap.
+                    for (Path file : listCheckpoints(directory, BASE_PREFIX, DELTA_PREFIX))
+                        if (sequenceOf(file) < checkpointSequence)
+                            Files.delete(file);
+                    Files.deleteIfExists(directory.resolve(GAP_MARKER));
+                } else {
+                    writeCheckpoint(checkpointFile(directory, DELTA_PREFIX, checkpointSequence), episode,
+                            progress, Q.getPrecision(), Q.getKeys(), rows);
+                    // Compacting across a gap would hide it within a base.
+                    if (checkpointSequence % compactEvery == 0 && !Files.exists(directory.resolve(GAP_MARKER)))
+                        compact(checkpointSequence);
+                }
+            } catch (IOException | RuntimeException e) {
+                needsFullBase.set(true);
+                markGap();
+                System.err.println("Error: Could not write checkpoint " + checkpointSequence + " to " + directory +
+                        ". The next checkpoint will write every state.");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Records on disk that a checkpoint is missing, so that the run is not resumed from an incomplete chain.
+     */
+    private void markGap() {
+        try {
+            Files.write(directory.resolve(GAP_MARKER), new byte[0]);
+        } catch (IOException e) {
+            System.err.println("Error: Could not mark the checkpoints in " + directory + " as incomplete.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Takes a final checkpoint, waits for every pending write to finish, and checks that the checkpoints restore the
+     * live table. If they do, the run is marked as completed. Must be called from the training thread, once training
+     * has stopped.
+     * @param episode the number of episodes trained so far.
+     * @param progress the trainer's progress at this episode, or null.
+     * @return whether the checkpoints restore the live table exactly.
+     */
+    public boolean close(final int episode, final Serializable progress) {
+        checkpoint(episode, progress);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.MINUTES)) {
+                System.err.println("Error: timed out waiting for the checkpoints in " + directory + " to be written.");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (Files.exists(directory.resolve(GAP_MARKER)) || !restoresLiveTable())
+            return false;
+
+        try {
+            Files.write(directory.resolve(COMPLETED_MARKER), new byte[0]);
+        } catch (IOException e) {
+            System.err.println("Error: Could not mark the checkpoints in " + directory + " as completed.");
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the latest base, its deltas and any compactions restore a table identical to the live one: the same
+     * states, each with the same stored row.
+     */
+    private boolean restoresLiveTable() {
+        final Tuple<QTable, Integer, Serializable> restored;
+        try {
+            restored = restore(directory, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            System.err.println("Error: Could not restore the checkpoints in " + directory + ".");
+            e.printStackTrace();
+            return false;
+        }
+
+        final Map<Long, Object> expected = Q.copyRows();
+        final Map<Long, Object> actual = restored == null ? Collections.emptyMap() : restored.getItem1().copyRows();
+
+        if (expected.size() != actual.size()) {
+            System.err.println("Error: the checkpoints in " + directory + " restore " + actual.size() +
+                    " states, but the Q table holds " + expected.size() + ".");
+            return false;
+        }
+        for (Map.Entry<Long, Object> entry : expected.entrySet()) {
+            if (!Objects.deepEquals(entry.getValue(), actual.get(entry.getKey()))) {
+                System.err.println("Error: the checkpoints in " + directory + " restore a different row for state " +
+                        entry.getKey() + ".");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges the latest base and every delta up to and including the given sequence number into a new base, then
+     * deletes the merged files. Only ever reads files, so it never touches the Q table being trained.
+     */
+    private void compact(final int upToSequence) throws IOException {
+        final Tuple<QTable, Integer, Serializable> merged = restore(directory, upToSequence);
+        if (merged == null)
+            return;
+
+        final QTable table = merged.getItem1();
+        writeCheckpoint(checkpointFile(directory, BASE_PREFIX, upToSequence), merged.getItem2(), merged.getItem3(),
+                table.getPrecision(), table.getKeys(), table.copyRows());
+
+        for (Path file : listCheckpoints(directory, BASE_PREFIX, DELTA_PREFIX))
+            if (sequenceOf(file) < upToSequence || (sequenceOf(file) == upToSequence && file.getFileName().toString().startsWith(DELTA_PREFIX)))
+                Files.delete(file);
+    }
+
+    /**
+     * Restores the Q table of a run from its latest base and the deltas written after it.
+     * @param AIName the name of the run.
+     * @return the restored Q table, the number of episodes it had been trained for, and the trainer's progress at
+     * that episode (possibly null), or null if the run has no
+     * checkpoints, already completed, or is missing a checkpoint.
+     */
+    public static Tuple<QTable, Integer, Serializable> loadLatest(final String AIName) {
+        final Path directory = checkpointDirectory(AIName);
+        if (Files.exists(directory.resolve(COMPLETED_MARKER)))
+            return null;
+        if (Files.exists(directory.resolve(GAP_MARKER))) {
+            System.err.println("Error: a checkpoint in " + directory + " failed to be written, so the run cannot be resumed.");
+            return null;
+        }
+
+        try {
+            return restore(directory, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            System.err.println("Error: Could not restore the checkpoints in " + directory + ".");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Tuple<QTable, Integer, Serializable> restore(final Path directory, final int upToSequence) throws IOException {
+        // Find the latest base, then apply the deltas written after it in order.
+        Path latestBase = null;
+        for (Path base : listCheckpoints(directory, BASE_PREFIX))
+            if (sequenceOf(base) <= upToSequence && (latestBase == null || sequenceOf(base) > sequenceOf(latestBase)))
+                latestBase = base;
+
+        final int baseSequence = latestBase == null ? 0 : sequenceOf(latestBase);
+        final List<Path> files = new ArrayList<>();
+        if (latestBase != null)
+            files.add(latestBase);
+        for (Path delta : listCheckpoints(directory, DELTA_PREFIX))
+            if (sequenceOf(delta) > baseSequence && sequenceOf(delta) <= upToSequence)
+                files.add(delta);
+
+        if (files.isEmpty())
+            return null;
+
+        files.sort(Comparator.comparingInt(Checkpointer::sequenceOf));
+
+        QTable Q = null;
+        int episode = 0;
+        Serializable progress = null;
+        for (Path file : files) {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file.toFile())))) {
+                episode = in.readInt();
+                progress = (Serializable) in.readObject();
+                final QPrecision precision = (QPrecision) in.readObject();
+                final StateKeys keys = (StateKeys) in.readObject();
+                @SuppressWarnings("unchecked")
+                final Map<Long, Object> rows = (Map<Long, Object>) in.readObject();
+
+                if (Q == null)
+                    Q = new QTable(precision, keys);
+                Q.putRows(rows);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Error: checkpoint " + file + " is corrupt.", e);
+            }
+        }
+
+        return new Tuple<>(Q, episode, progress);
+    }
+
+    /**
+     * Writes to a temporary file first, so that a crash mid-write never leaves a partial checkpoint behind.
+     */
+    private static void writeCheckpoint(final Path file, final int episode, final Serializable progress,
+                                        final QPrecision precision, final StateKeys keys,
+                                        final Map<Long, Object> rows) throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporary.toFile())))) {
+            out.writeInt(episode);
+            out.writeObject(progress);
+            out.writeObject(precision);
+            out.writeObject(keys);
+            out.writeObject(rows);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path checkpointDirectory(final String AIName) {
+        return Paths.get("resources/checkpoints/" + AIName);
+    }
+
+    private static Path checkpointFile(final Path directory, final String prefix, final int sequence) {
+        return directory.resolve(String.format("%s%08d%s", prefix, sequence, EXTENSION));
+    }
+
+    private static int sequenceOf(final Path file) {
+        final String name = file.getFileName().toString();
+        final int start = name.indexOf('-') + 1;
+        return Integer.parseInt(name.substring(start, name.length() - EXTENSION.length()));
+    }
+
+    private static int latestSequence(final Path directory) {
+        int latest = 0;
+        for (Path file : listCheckpoints(directory, BASE_PREFIX, DELTA_PREFIX))
+            latest = Math.max(latest, sequenceOf(file));
+        return latest;
+    }
+
+    private static List<Path> listCheckpoints(final Path directory, final String... prefixes) {
+        final List<Path> files = new ArrayList<>();
+        final File[] contents = directory.toFile().listFiles();
+        if (contents == null)
+            return files;
+
+        for (File file : contents)
+            for (String prefix : prefixes)
+                if (file.getName().startsWith(prefix) && file.getName().endsWith(EXTENSION))
+                    files.add(file.toPath());
+
+        return files;
+    }
+
+}
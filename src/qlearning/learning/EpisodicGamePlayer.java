@@ -1,19 +1,26 @@
 package qlearning.learning;
 
 import game.Game;
+import main.collections.FastArrayList;
 import qlearning.AI.QLearningAI;
+import qlearning.AI.QTable;
+import qlearning.util.QPrecision;
+import qlearning.util.StateKeys;
+import qlearning.util.Tuple;
 import qlearning.util.Utils;
 import util.AI;
 import util.Context;
-import util.GameLoader;
+import util.Move;
 import util.Trial;
 import util.model.Model;
 import utils.RandomAI;
 
-import java.io.File;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class EpisodicGamePlayer {
 
@@ -30,6 +37,22 @@ public class EpisodicGamePlayer {
     // Variables for tracking basic statistics, primarily for printing purposes.
     private int numTotalGames = 0, numAI1Wins = 0, numAI2Wins = 0, numDraws = 0;
 
+    // The precision with which newly trained Q-Learning AIs store their Q values, and how they key board states.
+    private QPrecision precision = QPrecision.DOUBLE;
+    private StateKeys keys = StateKeys.HASHCODE;
+
+    // The backup newly trained Q-Learning AIs apply after each episode. See QLearningAI.updateQBackwards.
+    private int nStep = 1;
+    private double lambda = 0;
+
+    // The capacity of the greedy move cache of newly trained Q-Learning AIs, or 0 for none.
+    private int greedyCacheCapacity = 0;
+
+    // How many episodes between checkpoints of the Q table (0 disables checkpointing), how many checkpoints between
+    // compactions, and whether to resume training from the latest checkpoint.
+    private int checkpointEvery = 0, compactEvery = 10;
+    private boolean resumeFromCheckpoint = false;
+
     /**
      * Constructor and loads a game based off a string.
      * @param gameLocation The location of the game for Ludii to load. Must end in ".lud".
@@ -37,13 +60,7 @@ public class EpisodicGamePlayer {
      */
     public EpisodicGamePlayer(final String gameLocation, final String AIName) {
         this.gameLocation = gameLocation;
-        // Note: Hex is loaded differently. This will load Hex with a 3x3 grid, but most sizes up to 19x19 are supported.
-        if (gameLocation.equals("Hex.lud")) {
-            final List<String> options = Collections.singletonList("Board Size/3x3");
-            this.game = GameLoader.loadGameFromName("Hex.lud", options);
-        } else {
-            this.game = GameLoader.loadGameFromFile(new File(gameLocation));
-        }
+        this.game = Utils.loadGame(gameLocation);
         this.AIName = AIName;
         this.numPlayers = game.players().count();
     }
@@ -84,31 +101,71 @@ public class EpisodicGamePlayer {
 
         // Get a reference to the Q-learning AI.
         QLearningAI qAI = null;
+        int qAIIndex = -1;
 
-        for(AI ai : ais)
-            if (ai instanceof QLearningAI)
-                qAI = (QLearningAI) ai;
+        for(int i = 0; i < ais.size(); i++) {
+            if (ais.get(i) instanceof QLearningAI) {
+                qAI = (QLearningAI) ais.get(i);
+                qAIIndex = i;
+            }
+        }
+
+        // Set up checkpointing, restoring the Q table, the position in the epsilon schedule and the statistics if
+        // resuming.
+        int firstEpisode = 0;
+        Checkpointer checkpointer = null;
+        if (checkpointEvery > 0 && qAI != null) {
+            Tuple<QTable, Integer, Serializable> restored = resumeFromCheckpoint ? Checkpointer.loadLatest(AIName) : null;
+            if (restored != null && restored.getItem2() >= numEpisodes) {
+                System.out.println("The checkpoints of " + AIName + " are already at episode " + restored.getItem2() +
+                        " of " + numEpisodes + ". Starting afresh.");
+                restored = null;
+            }
+            final QTable Q = restored == null ? new QTable(precision, keys) : restored.getItem1();
+            if (greedyCacheCapacity > 0)
+                Q.enableGreedyCache(greedyCacheCapacity);
+
+            qAI = configure(new QLearningAI(alpha, gamma, epsilon, Q, true));
+            ais.set(qAIIndex, qAI);
+
+            if (restored != null) {
+                firstEpisode = restored.getItem2();
+
+                if (restored.getItem3() instanceof TrainingProgress
+                        && ((TrainingProgress) restored.getItem3()).winPercentage.length == winPercentage.length) {
+                    final TrainingProgress progress = (TrainingProgress) restored.getItem3();
+                    numTotalGames = progress.numTotalGames;
+                    numAI1Wins = progress.numAI1Wins;
+                    numAI2Wins = progress.numAI2Wins;
+                    numDraws = progress.numDraws;
+                    winPercentage = progress.winPercentage.clone();
+                    reportIndex = progress.reportIndex;
+                } else {
+                    // Without the statistics of the episodes before the checkpoint, their reports are missing.
+                    reportIndex = Math.min(winPercentage.length, Math.max(0, (firstEpisode - 1) / report_every));
+                    Arrays.fill(winPercentage, 0, reportIndex, Double.NaN);
+                }
+
+                // Continue with the AIs in the seats they would have had.
+                if (switchSidesEachEpisode && firstEpisode % 2 == 1)
+                    Collections.swap(ais, 1, 2);
+
+                System.out.println("Resuming " + AIName + " from episode " + firstEpisode + " with " + Q.size() + " states.");
+            }
+            checkpointer = new Checkpointer(AIName, Q, compactEvery, restored != null);
+        }
 
         // Perform the training.
-        for(int episode = 0; episode < numEpisodes; episode++) {
+        for(int episode = firstEpisode; episode < numEpisodes; episode++) {
 
-            // CODE FOR DYNAMICALLY DECREASING EPS
             if (qAI == null) {
                 throw new NullPointerException("The Q-Learning AI is null. Aborting.");
             }
 
-            // Explore so long as the episode is <= l. Only update the value of epsilon if using the dynamic epsilon update.
-            if (usingDynamicEps && episode <= l) {
-                final double ratio = episode / (double) l;
-                final double eps = a * (Math.cos(0.5 * ratio * Math.PI)) + b;
-                qAI.setEpsilon(eps);
-            } else if (episode > l) {
-                qAI.setEpsilon(0);
-            }
-            // END CODE FOR DYNAMICALLY DECREASING EPS
+            updateEpsilon(qAI, episode, l, a, b, usingDynamicEps);
 
             // Perform one episode of training and determine the rankings.
-            final double[] ranking = performOneEpisode(ais, game, trial, context);
+            final double[] ranking = playEpisode(ais, game, context, 0, null);
 
             // Reward the Q-learning AI based upon its action.
             rewardAIs(context, ais, ranking);
@@ -135,6 +192,11 @@ public class EpisodicGamePlayer {
                 winPercentage[reportIndex] = (double) numAI1Wins / numTotalGames;
                 reportIndex++;
             }
+
+            // Taken after this episode's report, so that resuming from it neither repeats nor skips a report.
+            if (checkpointer != null && (episode + 1) % checkpointEvery == 0)
+                checkpointer.checkpoint(episode + 1, new TrainingProgress(numTotalGames, numAI1Wins, numAI2Wins,
+                        numDraws, winPercentage, reportIndex));
         }
 
         System.out.println();
@@ -147,6 +209,10 @@ public class EpisodicGamePlayer {
         if (reportIndex < winPercentage.length)
             winPercentage[reportIndex] = (double) numAI1Wins / numTotalGames;
 
+        if (checkpointer != null && !checkpointer.close(numEpisodes, new TrainingProgress(numTotalGames, numAI1Wins,
+                numAI2Wins, numDraws, winPercentage, reportIndex)))
+            System.err.println("Error: the checkpoints of " + AIName + " do not restore the trained Q table.");
+
         // Try to save the Q-Learning AI.
         try {
             if  (qAI == null) throw new NullPointerException("the Q AI must not be null.");
@@ -159,31 +225,194 @@ public class EpisodicGamePlayer {
     }
 
     /**
-     * Lets the agents play one episode of the game.
-     * @param ais an ArrayList of the AIs to play the game.
-     * @param local_game A copy of the game.
-     * @param trial A copy of the trial.
-     * @param context A copy of the context.
+     * Trains a QLearningAI vs a RandomAI until its greedy policy reaches a target win rate. Every evaluate_every
+     * episodes, a non-learning copy sharing the same Q table plays evaluation_games without exploration.
+     * @param maxEpisodes the most episodes to train for before giving up.
+     * @param l which episode to stop exploring.
+     * @param alpha the learning rate for the QLearningAI.
+     * @param gamma the future reward discount rate for the QLearningAI.
+     * @param a a+b is the upper bound of the epsilon-greedy policy parameter.
+     * @param b the lower bound of the epsilon-greedy policy parameter.
+     * @param targetWinRate the fraction of evaluation games the AI must win.
+     * @param evaluate_every how many training episodes should occur between each evaluation.
+     * @param evaluation_games how many games each evaluation plays.
+     * @return the number of training episodes needed to reach the target win rate, or -1 if it was not reached.
+     */
+    public int performTrainingUntilWinRate(final int maxEpisodes, final int l, final double alpha, final double gamma,
+                                           final double a, final double b, final double targetWinRate,
+                                           final int evaluate_every, final int evaluation_games) {
+        final ArrayList<AI> ais = loadAIs("QLearningAI", "Random", alpha, gamma, a+b);
+        final QLearningAI qAI = (QLearningAI) ais.get(1);
+
+        final Trial trial = new Trial(game);
+        final Context context = new Context(game, trial);
+
+        for (int episode = 1; episode <= maxEpisodes; episode++) {
+            updateEpsilon(qAI, episode, l, a, b, true);
+
+            final double[] ranking = playEpisode(ais, game, context, 0, null);
+            rewardAIs(context, ais, ranking);
+
+            if (episode % evaluate_every == 0) {
+                // A non-learning agent never adds states, so evaluating leaves the table being trained untouched.
+                final QLearningAI greedyAI = new QLearningAI(alpha, gamma, 0, qAI.getQ(), false);
+                final double winRate = performEvaluationVSRandomAI(greedyAI, evaluation_games);
+                if (winRate >= targetWinRate)
+                    return episode;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Plays a (typically non-learning) QLearningAI against a RandomAI, without any exploration, and measures how
+     * often it wins. The Q-Learning AI always moves first.
+     * @param qAI the Q-Learning AI to evaluate.
+     * @param numGames how many games to play.
+     * @return the fraction of games won by the Q-Learning AI.
+     */
+    public double performEvaluationVSRandomAI(final QLearningAI qAI, final int numGames) {
+        // Reset the variables for stat tracking.
+        numTotalGames = 0;
+        numAI1Wins = 0;
+        numAI2Wins = 0;
+        numDraws = 0;
+
+        final ArrayList<AI> ais = new ArrayList<>();
+        ais.add(null);
+        ais.add(qAI);
+        ais.add(new RandomAI());
+
+        final Trial trial = new Trial(game);
+        final Context context = new Context(game, trial);
+
+        qAI.setEpsilon(0);
+
+        for (int i = 0; i < numGames; i++) {
+            final double[] ranking = playEpisode(ais, game, context, 0, null);
+            rewardAIs(context, ais, ranking);
+            numTotalGames++;
+        }
+
+        return (double) numAI1Wins / numTotalGames;
+    }
+
+    /**
+     * Sets the epsilon of the Q-Learning AI for an episode. Explore so long as the episode is <= l, decaying epsilon
+     * from a+b down to b along a cosine if using the dynamic epsilon update. Afterwards, only exploit.
+     */
+    private void updateEpsilon(final QLearningAI qAI, final int episode, final int l, final double a, final double b,
+                               final boolean usingDynamicEps) {
+        if (usingDynamicEps && episode <= l) {
+            final double ratio = episode / (double) l;
+            final double eps = a * (Math.cos(0.5 * ratio * Math.PI)) + b;
+            qAI.setEpsilon(eps);
+        } else if (episode > l) {
+            qAI.setEpsilon(0);
+        }
+    }
+
+    /**
+     * The statistics of a training session up to a checkpoint, saved with it so that a resumed session reports the
+     * same results as an uninterrupted one.
+     */
+    static final class TrainingProgress implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int numTotalGames, numAI1Wins, numAI2Wins, numDraws;
+
+        // The win rates reported so far, and the index of the next report.
+        final double[] winPercentage;
+        final int reportIndex;
+
+        TrainingProgress(final int numTotalGames, final int numAI1Wins, final int numAI2Wins, final int numDraws,
+                         final double[] winPercentage, final int reportIndex) {
+            this.numTotalGames = numTotalGames;
+            this.numAI1Wins = numAI1Wins;
+            this.numAI2Wins = numAI2Wins;
+            this.numDraws = numDraws;
+            // Copied, as the checkpoint is written in the background while training carries on.
+            this.winPercentage = winPercentage.clone();
+            this.reportIndex = reportIndex;
+        }
+    }
+
+    /**
+     * Observes every move the AIs make during {@link #playEpisode(List, Game, Context, int, MoveObserver)}.
+     */
+    public interface MoveObserver {
+        /**
+         * @param context the context, after the move was applied.
+         */
+        void moved(Context context);
+    }
+
+    /**
+     * Lets the agents play one episode of the game. The AIs are initialized first, and are not rewarded.
+     * @param ais the AIs to play the game, indexed from 1.
+     * @param game The game.
+     * @param context The context to play in. It is restarted.
+     * @param openingPlies how many uniformly random moves the episode opens with, before the AIs take over.
+     * @param observer called after every move of the AIs, or null.
      * @return the ranking of the AIs.
      */
-    private double[] performOneEpisode(final ArrayList<AI> ais, final Game local_game, final Trial trial, final Context context) {
+    public static double[] playEpisode(final List<AI> ais, final Game game, final Context context,
+                                       final int openingPlies, final MoveObserver observer) {
+        final Trial trial = context.trial();
+        final Model model = context.model();
+
         // Start the game
-        local_game.start(context);
+        game.start(context);
 
         // Initialize the AIs
-        for(int p = 1; p <= this.numPlayers; p++)
-            ais.get(p).initAI(local_game, p);
+        for (int p = 1; p < ais.size(); p++)
+            ais.get(p).initAI(game, p);
 
-        final Model model = context.model();
+        for (int ply = 0; ply < openingPlies && !trial.over(); ply++) {
+            final FastArrayList<Move> legalMoves = game.moves(context).moves();
+            game.apply(context, legalMoves.get(ThreadLocalRandom.current().nextInt(legalMoves.size())));
+        }
 
         // Perform an episode.
-        while (!trial.over())
+        while (!trial.over()) {
             model.startNewStep(context, ais, 1.0);
+            if (observer != null)
+                observer.moved(context);
+        }
 
         // Return the rankings of the AIs.
         return trial.ranking();
     }
 
+    /**
+     * Determines a Q-Learning AI's reward from its final rank: +1 should it win, -1 should it lose, and 0 for a draw.
+     * @param rank the AI's rank at the end of the episode.
+     * @return the reward.
+     */
+    public static int reward(final double rank) {
+        if (rank == 1)
+            return 1;
+        if (rank == 2)
+            return -1;
+        return 0;
+    }
+
+    /**
+     * Rewards every Q-Learning AI of an episode according to its rank. Other AIs are ignored.
+     * @param context The context the episode was played in.
+     * @param ais the AIs who played the game, indexed from 1.
+     * @param ranking an array containing the ranking of the AIs from the episode.
+     */
+    public static void rewardQLearningAIs(final Context context, final List<? extends AI> ais, final double[] ranking) {
+        for (int p = 1; p < ranking.length; ++p) {
+            final AI ai = ais.get(context.state().playerToAgent(p));
+            if (ai instanceof QLearningAI)
+                ((QLearningAI) ai).updateQBackwards(reward(ranking[p]));
+        }
+    }
+
     /**
      * Rewards the AIs with +1 should they win and -1 should they lose. 0 for draws.
      * @param context The current context.
@@ -197,24 +426,13 @@ public class EpisodicGamePlayer {
         if(ranking.length != this.numPlayers+1)
             System.err.println("Error: the number of rewards is not equal to the number of players of the game!");
 
+        // Reward each Q-Learning AI.
+        rewardQLearningAIs(context, ais, ranking);
+
         // update Stat tracking variables.
         int winner = 0;
-
-        // Reward each AI.
-        for (int p = 1; p <= this.numPlayers; ++p) {
-            AI ai = ais.get(context.state().playerToAgent(p));
+        for (int p = 1; p <= this.numPlayers; ++p)
             if (ranking[p] == 1.0) winner = p;
-            // If the AI is a QLearningAI, then we reward it +1 should it win, -1 should it lose, and 0 for a draw.
-            if (ai instanceof QLearningAI) {
-                int reward = 0;
-                if (ranking[p] == 1) {
-                    reward = 1;
-                } else if (ranking[p] == 2) {
-                    reward = -1;
-                }
-                ((QLearningAI) ai).updateQBackwards(reward);
-            }
-        }
 
         if (winner == 1)
             numAI1Wins++;
@@ -238,9 +456,76 @@ public class EpisodicGamePlayer {
         // Indexing begins with 1 in Ludii for AIs, so a null AI is added to the beginning.
         ArrayList<AI> ais = new ArrayList<>();
         ais.add(null);
-        ais.add(AI1.equals("QLearningAI") ? new QLearningAI(alpha, gamma, epsilon, true) : new RandomAI());
-        ais.add(AI2.equals("QLearningAI") ? new QLearningAI(alpha, gamma, epsilon, true) : new RandomAI());
+        ais.add(AI1.equals("QLearningAI") ? new QLearningAI(alpha, gamma, epsilon, true, precision) : new RandomAI());
+        ais.add(AI2.equals("QLearningAI") ? new QLearningAI(alpha, gamma, epsilon, true, precision) : new RandomAI());
+
+        for (AI ai : ais)
+            if (ai instanceof QLearningAI)
+                configure((QLearningAI) ai);
+
         return ais;
     }
 
+    /**
+     * Applies this player's key, backup and cache settings to a Q-Learning AI.
+     * @param qAI the Q-Learning AI.
+     * @return the same Q-Learning AI.
+     */
+    private QLearningAI configure(final QLearningAI qAI) {
+        qAI.setKeys(keys);
+        qAI.setNStep(nStep);
+        qAI.setLambda(lambda);
+        qAI.setGreedyCache(greedyCacheCapacity);
+        return qAI;
+    }
+
+    /**
+     * Sets the precision with which Q-Learning AIs trained by this player store their Q values.
+     * @param precision the Q value precision.
+     */
+    public void setPrecision(final QPrecision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * Sets how Q-Learning AIs trained by this player turn board states into Q table keys.
+     * @param keys the key strategy.
+     */
+    public void setKeys(final StateKeys keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Sets the backup Q-Learning AIs trained by this player apply after each episode.
+     * @param nStep the number of moves to look ahead for n-step returns. 1 gives the one-step rule.
+     * @param lambda the TD(lambda) trace decay. 0 uses n-step returns instead.
+     */
+    public void setBackup(final int nStep, final double lambda) {
+        this.nStep = nStep;
+        this.lambda = lambda;
+    }
+
+    /**
+     * Sets the capacity of the cache of greedy moves of the Q tables created by this player.
+     * @param capacity the most states the cache may hold, or 0 for no cache.
+     */
+    public void setGreedyCache(final int capacity) {
+        this.greedyCacheCapacity = capacity;
+    }
+
+    /**
+     * Sets how the Q table is checkpointed during performTrainingVSRandomAI. Checkpoints are written in the
+     * background to "resources/checkpoints/AIName/".
+     * @param checkpointEvery how many episodes between checkpoints. 0 disables checkpointing.
+     * @param compactEvery how many checkpoints between merging them into a single file. At least 1.
+     * @param resume whether to resume from the latest checkpoint of a previous, unfinished run with the same AI name.
+     */
+    public void setCheckpointing(final int checkpointEvery, final int compactEvery, final boolean resume) {
+        if (checkpointEvery < 0) throw new IllegalArgumentException("Error: checkpointEvery must not be negative, but was " + checkpointEvery + ".");
+        if (compactEvery < 1) throw new IllegalArgumentException("Error: compactEvery must be at least 1, but was " + compactEvery + ".");
+        this.checkpointEvery = checkpointEvery;
+        this.compactEvery = compactEvery;
+        this.resumeFromCheckpoint = resume;
+    }
+
 }
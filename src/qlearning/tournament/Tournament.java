@@ -0,0 +1,258 @@
+package qlearning.tournament;
+
+import game.Game;
+import qlearning.AI.QLearningAI;
+import qlearning.AI.QTable;
+import qlearning.learning.EpisodicGamePlayer;
+import util.AI;
+import util.Context;
+import util.Trial;
+import utils.RandomAI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Plays a round-robin tournament between saved Q-learning models.
+ *
+ * Every pair of models plays gamesPerPairing games in each seat order. Games are split into batches that run
+ * concurrently on a work-stealing (fork/join) pool. Every game gets its own Trial and Context and its own pair of
+ * lightweight, non-learning QLearningAIs, while the Q tables themselves are shared read-only between all games.
+ *
+ * The models play greedily and the games themselves have no chance, so two models would play the same game every
+ * time. Instead, every game opens with a few uniformly random moves, and the models play on from that position.
+ */
+public class Tournament {
+
+    // The number of games a single task plays before its results are added to the win matrix.
+    private static final int GAMES_PER_TASK = 100;
+
+    // The Elo rating given to the average model.
+    private static final double MEAN_ELO = 1500;
+
+    // The game every match is played on.
+    private final Game game;
+
+    // The number of random moves every game opens with.
+    private final int openingPlies;
+
+    // The name and read-only Q table of each model.
+    private final List<String> names = new ArrayList<>();
+    private final List<QTable> tables = new ArrayList<>();
+
+    // Flattened n x n matrices: wins[i * n + j] is how many games model i won against model j, and draws[i * n + j]
+    // how many they drew. Both count games from either seat order.
+    private AtomicIntegerArray wins, draws;
+
+    /**
+     * @param game the game every match is played on.
+     * @param openingPlies the number of uniformly random moves every game opens with, before the models take over.
+     */
+    public Tournament(final Game game, final int openingPlies) {
+        if (openingPlies < 0) throw new IllegalArgumentException("Error: openingPlies must not be negative, but was " + openingPlies + ".");
+        this.game = game;
+        this.openingPlies = openingPlies;
+    }
+
+    /**
+     * Enters a model into the tournament.
+     * @param name the name to report the model under.
+     * @param Q the model's Q table. It is made read-only.
+     */
+    public void addModel(final String name, final QTable Q) {
+        Q.makeReadOnly();
+        names.add(name);
+        tables.add(Q);
+    }
+
+    /**
+     * Estimates how well a model fits the game, as the fraction of positions reached in random games whose state is
+     * in the model's Q table. A model trained on another game almost never matches, and so would only play randomly.
+     * @param Q the model's Q table.
+     * @param numGames how many random games to sample the positions from.
+     * @return the fraction of the sampled positions found in Q, or 0 if its keys cannot represent this game's boards.
+     */
+    public double keyCoverage(final QTable Q, final int numGames) {
+        if (!Q.getKeys().supports(game))
+            return 0;
+
+        final ArrayList<AI> ais = new ArrayList<>();
+        ais.add(null);
+        for (int p = 1; p <= game.players().count(); p++)
+            ais.add(new RandomAI());
+
+        final Context context = new Context(game, new Trial(game));
+        final int[] counts = new int[2];
+        for (int g = 0; g < numGames; g++)
+            EpisodicGamePlayer.playEpisode(ais, game, context, 0, after -> {
+                // Only positions a model would have to move from.
+                if (after.trial().over())
+                    return;
+                if (Q.containsKey(Q.getKeys().key(after)))
+                    counts[0]++;
+                counts[1]++;
+            });
+
+        return counts[1] == 0 ? 0 : (double) counts[0] / counts[1];
+    }
+
+    /**
+     * Plays every pairing of models in both seat orders.
+     * @param gamesPerPairing how many games each ordered pair of models plays.
+     * @param numThreads how many games may be played at the same time.
+     */
+    public void run(final int gamesPerPairing, final int numThreads) {
+        final int n = names.size();
+        wins = new AtomicIntegerArray(n * n);
+        draws = new AtomicIntegerArray(n * n);
+
+        // Schedule every ordered pairing: model i moves first against model j.
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i == j)
+                    continue;
+                for (int played = 0; played < gamesPerPairing; played += GAMES_PER_TASK)
+                    tasks.add(matchTask(i, j, Math.min(GAMES_PER_TASK, gamesPerPairing - played)));
+            }
+        }
+
+        final ExecutorService pool = Executors.newWorkStealingPool(numThreads);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error: a tournament game failed. Aborting.", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Creates a task that plays a batch of games with model first moving first and model second moving second.
+     */
+    private Callable<Void> matchTask(final int first, final int second, final int numGames) {
+        return () -> {
+            final int n = names.size();
+            int firstWins = 0, secondWins = 0, numDraws = 0;
+
+            for (int g = 0; g < numGames; g++) {
+                final ArrayList<AI> ais = new ArrayList<>();
+                ais.add(null);
+                ais.add(new QLearningAI(0, 0, 0, tables.get(first), false));
+                ais.add(new QLearningAI(0, 0, 0, tables.get(second), false));
+
+                final int winner = playGame(ais);
+                if (winner == 1)
+                    firstWins++;
+                else if (winner == 2)
+                    secondWins++;
+                else
+                    numDraws++;
+            }
+
+            wins.addAndGet(first * n + second, firstWins);
+            wins.addAndGet(second * n + first, secondWins);
+            draws.addAndGet(first * n + second, numDraws);
+            draws.addAndGet(second * n + first, numDraws);
+            return null;
+        };
+    }
+
+    /**
+     * Plays one game in a fresh context, opening with random moves.
+     * @return the player who won, or 0 for a draw.
+     */
+    private int playGame(final ArrayList<AI> ais) {
+        final Context context = new Context(game, new Trial(game));
+        final double[] ranking = EpisodicGamePlayer.playEpisode(ais, game, context, openingPlies, null);
+
+        for (int p = 1; p < ranking.length; p++)
+            if (ranking[p] == 1.0)
+                return p;
+        return 0;
+    }
+
+    /**
+     * Fits Elo ratings to every game played, counting draws as half a win. The ratings are the maximum likelihood
+     * Bradley-Terry strengths on the Elo scale, so unlike sequential Elo updates they do not depend on the order in
+     * which the concurrent games finished. Each pairing also counts one virtual draw, which keeps the ratings finite
+     * when a model wins every game.
+     * @return the Elo rating of each model, in the order the models were added.
+     */
+    public double[] eloRatings() {
+        final int n = names.size();
+        final double[] ratings = new double[n];
+
+        for (int iteration = 0; iteration < 10_000; iteration++) {
+            double largestStep = 0;
+
+            for (int i = 0; i < n; i++) {
+                double score = 0, expected = 0, variance = 0;
+                for (int j = 0; j < n; j++) {
+                    if (i == j)
+                        continue;
+                    final int games = gamesBetween(i, j) + 1;
+                    final double p = 1.0 / (1.0 + Math.pow(10, (ratings[j] - ratings[i]) / 400.0));
+                    score += wins.get(i * n + j) + 0.5 * (draws.get(i * n + j) + 1);
+                    expected += games * p;
+                    variance += games * p * (1 - p);
+                }
+                if (variance == 0)
+                    continue;
+
+                // A Newton step on the log-likelihood, converted to the Elo scale.
+                final double step = (score - expected) / variance * 400.0 / Math.log(10);
+                ratings[i] += Math.max(-100, Math.min(100, step));
+                largestStep = Math.max(largestStep, Math.abs(step));
+            }
+
+            if (largestStep < 1e-6)
+                break;
+        }
+
+        // Centre the ratings on the mean Elo.
+        double mean = 0;
+        for (double rating : ratings)
+            mean += rating / n;
+        for (int i = 0; i < n; i++)
+            ratings[i] += MEAN_ELO - mean;
+
+        return ratings;
+    }
+
+    /**
+     * @return how many games model i won against model j, from either seat.
+     */
+    public int getWins(final int i, final int j) {
+        return wins.get(i * names.size() + j);
+    }
+
+    /**
+     * @return how many games models i and j drew.
+     */
+    public int getDraws(final int i, final int j) {
+        return draws.get(i * names.size() + j);
+    }
+
+    /**
+     * @return how many games models i and j played against each other.
+     */
+    public int gamesBetween(final int i, final int j) {
+        final int n = names.size();
+        return wins.get(i * n + j) + wins.get(j * n + i) + draws.get(i * n + j);
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+}
@@ -0,0 +1,69 @@
+package qlearning.util;
+
+import util.Context;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects Q table keys that are shared by distinct boards. The first board seen with each key is recorded in its
+ * exact {@link PackedBoard} encoding; any later, different board with the same key is counted as a collision.
+ *
+ * Intended for boards too large for {@link StateKeys#EXACT} keys, where the hashcode is still used as the key.
+ */
+public class KeyVerifier {
+
+    // Key -> the first board seen with that key.
+    private final Map<Long, PackedBoard> boards = new ConcurrentHashMap<>();
+
+    // Keys known to be shared by more than one board.
+    private final Map<Long, Boolean> collidedKeys = new ConcurrentHashMap<>();
+
+    // The number of lookups checked, and how many of them found a different board behind their key.
+    private final LongAdder numChecks = new LongAdder(), numCollisions = new LongAdder();
+
+    /**
+     * Checks that the key of the current board has not already been used by a different board.
+     * @param key the key the board is stored under.
+     * @param context the current episode's context.
+     * @return true if the key belongs to this board alone so far, false if it collides.
+     */
+    public boolean verify(final long key, final Context context) {
+        numChecks.increment();
+
+        final PackedBoard board = PackedBoard.of(context);
+        final PackedBoard existing = boards.putIfAbsent(key, board);
+        if (existing == null || existing.equals(board))
+            return true;
+
+        numCollisions.increment();
+        collidedKeys.put(key, Boolean.TRUE);
+        return false;
+    }
+
+    /**
+     * @return the fraction of checked lookups that landed on a key belonging to a different board.
+     */
+    public double collisionRate() {
+        final long checks = numChecks.sum();
+        return checks == 0 ? 0 : (double) numCollisions.sum() / checks;
+    }
+
+    public long getNumChecks() {
+        return numChecks.sum();
+    }
+
+    public long getNumCollisions() {
+        return numCollisions.sum();
+    }
+
+    public int getNumCollidedKeys() {
+        return collidedKeys.size();
+    }
+
+    public int getNumKeys() {
+        return boards.size();
+    }
+
+}
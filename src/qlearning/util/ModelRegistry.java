@@ -0,0 +1,91 @@
+package qlearning.util;
+
+import qlearning.AI.QTable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads saved Q tables read-only, keeping a single copy of each. Models are identified by the contents of their file,
+ * so the same model saved under several names (or requested several times) is only ever loaded once.
+ *
+ * Repeated requests for the same, unchanged file are answered from its path, size and modification time alone, so
+ * that only the first request for a file reads and hashes it.
+ */
+public class ModelRegistry {
+
+    // SHA-256 digest of a model file -> its loaded, read-only Q table.
+    private final Map<String, QTable> tablesByDigest = new HashMap<>();
+
+    // Path, size and modification time of a model file -> its loaded, read-only Q table.
+    private final Map<String, QTable> tablesByFile = new HashMap<>();
+
+    /**
+     * Loads a model from "resources/AIs/", or returns the already loaded copy of an identical model.
+     * @param fileName The name and extension of the model.
+     * @return the read-only Q table, or null if the model could not be loaded.
+     */
+    public synchronized QTable load(final String fileName) {
+        final Path file = Paths.get("resources/AIs/" + fileName);
+        final String fileKey = fileKeyOf(file);
+
+        QTable Q = fileKey == null ? null : tablesByFile.get(fileKey);
+        if (Q != null)
+            return Q;
+
+        // A file not requested before may still hold a model that is already loaded.
+        final String digest = digestOf(file);
+        Q = digest == null ? null : tablesByDigest.get(digest);
+
+        if (Q == null) {
+            Q = Utils.loadAI(fileName);
+            if (Q == null)
+                return null;
+
+            Q.makeReadOnly();
+            if (digest != null)
+                tablesByDigest.put(digest, Q);
+        }
+
+        if (fileKey != null)
+            tablesByFile.put(fileKey, Q);
+
+        return Q;
+    }
+
+    /**
+     * @return the number of distinct Q tables held in memory.
+     */
+    public synchronized int size() {
+        return tablesByDigest.size();
+    }
+
+    /**
+     * @return a key that changes whenever the file is replaced or modified, or null if the file cannot be read.
+     */
+    private static String fileKeyOf(final Path file) {
+        try {
+            return file.toAbsolutePath().normalize() + "@" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String digestOf(final Path file) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new BigInteger(1, digest.digest(Files.readAllBytes(file))).toString(16);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.err.println("Error: Could not read " + file + ".");
+            return null;
+        }
+    }
+
+}
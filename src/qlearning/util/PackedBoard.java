@@ -0,0 +1,119 @@
+package qlearning.util;
+
+import game.Game;
+import game.equipment.container.board.Board;
+import game.types.board.SiteType;
+import util.Context;
+import util.state.containerState.ContainerState;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An exact encoding of a board state as bitboards: one occupancy bit per player per cell, packed into a long[].
+ *
+ * A cell is a site of the board at a particular stack level, numbered level * numSites + site, so that flat games only
+ * ever use level 0. Player p's piece on a cell sets bit cell * numPlayers + (p - 1). Trailing zero words are dropped,
+ * which keeps the encoding canonical even for stacking games (such as the default, 1D, Connect Four) whose maximum
+ * height is not known in advance.
+ *
+ * Two boards are equal exactly when every player occupies the same cells, unlike the hashcode from
+ * {@link Utils#boardToHashcode(Context)}, which may collide.
+ */
+public final class PackedBoard implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // The occupancy bits.
+    private final long[] words;
+
+    // Cached, as packed boards are used as hash keys.
+    private final int hashCode;
+
+    private PackedBoard(final long[] words) {
+        this.words = words;
+        this.hashCode = Arrays.hashCode(words);
+    }
+
+    /**
+     * Encodes the current board of a context, reading the owner of every cell from the board's container state.
+     * @param context the current episode's context.
+     * @return the packed board.
+     */
+    public static PackedBoard of(final Context context) {
+        final Game game = context.game();
+        final Board board = context.board();
+        final SiteType siteType = board.defaultSite();
+        final ContainerState containerState = context.state().containerStates()[0];
+        final int numSites = board.numSites();
+        final int numPlayers = game.players().count();
+        final boolean stacking = game.isStacking();
+
+        long[] words = new long[(numSites * numPlayers + 63) / 64];
+        int usedWords = 0;
+
+        for (int site = 0; site < numSites; site++) {
+            final int height = stacking ? containerState.sizeStack(site, siteType) : 1;
+
+            for (int level = 0; level < height; level++) {
+                final int who = stacking ? containerState.who(site, level, siteType) : containerState.who(site, siteType);
+                if (who < 1 || who > numPlayers)
+                    continue;
+
+                final long bit = ((long) level * numSites + site) * numPlayers + (who - 1);
+                final int word = (int) (bit >>> 6);
+                if (word >= words.length)
+                    words = Arrays.copyOf(words, Math.max(word + 1, 2 * words.length));
+
+                words[word] |= 1L << (bit & 63);
+                usedWords = Math.max(usedWords, word + 1);
+            }
+        }
+
+        return new PackedBoard(usedWords == words.length ? words : Arrays.copyOf(words, usedWords));
+    }
+
+    /**
+     * @return the number of 64-bit words the encoding needs. A board needing at most one word can be used directly
+     * as a Q table key; see {@link #asLong()}.
+     */
+    public int numWords() {
+        return words.length;
+    }
+
+    /**
+     * @return the encoding as a single long. Only valid when {@link #numWords()} is at most one.
+     */
+    public long asLong() {
+        if (words.length > 1)
+            throw new IllegalStateException("Error: a board of " + words.length + " words does not fit into a long.");
+        return words.length == 0 ? 0 : words[0];
+    }
+
+    /**
+     * Estimates the heap size of this object and its words, including object headers and 8-byte alignment.
+     */
+    public long estimatedBytes() {
+        // Object header, array reference and cached hash code.
+        final long objectBytes = 24;
+        // Array header and words.
+        final long arrayBytes = 16 + 8L * words.length;
+        return objectBytes + arrayBytes;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof PackedBoard))
+            return false;
+        final PackedBoard that = (PackedBoard) other;
+        return hashCode == that.hashCode && Arrays.equals(words, that.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+}
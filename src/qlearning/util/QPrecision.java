@@ -0,0 +1,323 @@
+package qlearning.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The numeric precision used to store the Q values of a Q table, both in memory and in the saved model file.
+ *
+ * Rewards are only ever -1, 0 or +1, so every learned Q value lies within [-1, 1]. The reduced precisions take
+ * advantage of this: FLOAT16 keeps roughly three significant digits in a short, and INT8 stores each value as a
+ * signed byte with a fixed scale of 1/127.
+ *
+ * Each row of Q values is kept as a primitive array of the precision's type (double[], float[], short[] or byte[]).
+ * Values are quantised when written with {@link #set(Object, int, double)} and dequantised when read with
+ * {@link #get(Object, int)} or {@link #decode(Object)}. FLOAT16 and INT8 round stochastically in set, so that
+ * small Q-learning updates survive on average, but to nearest in {@link #encode(double[])}.
+ */
+public enum QPrecision {
+
+    DOUBLE(Double.BYTES) {
+        @Override
+        public Object allocate(final int length) {
+            return new double[length];
+        }
+
+        @Override
+        public double get(final Object row, final int index) {
+            return ((double[]) row)[index];
+        }
+
+        @Override
+        public void set(final Object row, final int index, final double value) {
+            ((double[]) row)[index] = value;
+        }
+
+        @Override
+        public int length(final Object row) {
+            return ((double[]) row).length;
+        }
+    },
+
+    FLOAT32(Float.BYTES) {
+        @Override
+        public Object allocate(final int length) {
+            return new float[length];
+        }
+
+        @Override
+        public double get(final Object row, final int index) {
+            return ((float[]) row)[index];
+        }
+
+        @Override
+        public void set(final Object row, final int index, final double value) {
+            ((float[]) row)[index] = (float) value;
+        }
+
+        @Override
+        public int length(final Object row) {
+            return ((float[]) row).length;
+        }
+    },
+
+    FLOAT16(Short.BYTES) {
+        @Override
+        public Object allocate(final int length) {
+            return new short[length];
+        }
+
+        @Override
+        public double get(final Object row, final int index) {
+            return halfToFloat(((short[]) row)[index]);
+        }
+
+        /**
+         * Uses stochastic rounding, as for INT8. Rounding to nearest would drop every update smaller than half a unit
+         * in the last place, so that with a small learning rate Q values stall short of their targets.
+         */
+        @Override
+        public void set(final Object row, final int index, final double value) {
+            ((short[]) row)[index] = stochasticHalf(value);
+        }
+
+        /**
+         * Converting an already-learned row rounds to the nearest value instead, which gives the smallest error.
+         */
+        @Override
+        public Object encode(final double[] values) {
+            final short[] row = new short[values.length];
+            for (int i = 0; i < values.length; i++)
+                row[i] = floatToHalf((float) values[i]);
+            return row;
+        }
+
+        @Override
+        public int length(final Object row) {
+            return ((short[]) row).length;
+        }
+    },
+
+    INT8(Byte.BYTES) {
+        @Override
+        public Object allocate(final int length) {
+            return new byte[length];
+        }
+
+        @Override
+        public double get(final Object row, final int index) {
+            return ((byte[]) row)[index] / INT8_SCALE;
+        }
+
+        /**
+         * Uses stochastic rounding, so that Q-learning updates smaller than one quantisation step are not
+         * always rounded away and the stored value stays unbiased on average.
+         */
+        @Override
+        public void set(final Object row, final int index, final double value) {
+            final double scaled = clamp(value) * INT8_SCALE;
+            final double floor = Math.floor(scaled);
+            final double rounded = ThreadLocalRandom.current().nextDouble() < (scaled - floor) ? floor + 1 : floor;
+            ((byte[]) row)[index] = (byte) rounded;
+        }
+
+        /**
+         * Converting an already-learned row rounds to the nearest step instead, which gives the smallest error.
+         */
+        @Override
+        public Object encode(final double[] values) {
+            final byte[] row = new byte[values.length];
+            for (int i = 0; i < values.length; i++)
+                row[i] = (byte) Math.round(clamp(values[i]) * INT8_SCALE);
+            return row;
+        }
+
+        @Override
+        public int length(final Object row) {
+            return ((byte[]) row).length;
+        }
+    };
+
+    // INT8 maps [-1, 1] onto [-127, 127].
+    private static final double INT8_SCALE = 127.0;
+
+    // The approximate size of the header of a primitive array on a 64-bit JVM with compressed pointers.
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    // The number of bytes used to store a single Q value.
+    private final int bytesPerValue;
+
+    QPrecision(final int bytesPerValue) {
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    /**
+     * Creates a new row of Q values, all initialized to zero.
+     * @param length the number of legal moves in the state.
+     * @return a primitive array of this precision's type.
+     */
+    public abstract Object allocate(final int length);
+
+    /**
+     * Reads (and dequantises) one Q value from a row.
+     */
+    public abstract double get(final Object row, final int index);
+
+    /**
+     * Quantises and writes one Q value into a row.
+     */
+    public abstract void set(final Object row, final int index, final double value);
+
+    /**
+     * @return the number of Q values held in the row.
+     */
+    public abstract int length(final Object row);
+
+    /**
+     * Dequantises a whole row of Q values.
+     * @param row a row created by this precision.
+     * @return a new double[] holding the Q values of the row.
+     */
+    public double[] decode(final Object row) {
+        final double[] values = new double[length(row)];
+        for (int i = 0; i < values.length; i++)
+            values[i] = get(row, i);
+        return values;
+    }
+
+    /**
+     * Quantises a whole row of Q values.
+     * @param values the Q values to store.
+     * @return a new row of this precision's type.
+     */
+    public Object encode(final double[] values) {
+        final Object row = allocate(values.length);
+        for (int i = 0; i < values.length; i++)
+            set(row, i, values[i]);
+        return row;
+    }
+
+    /**
+     * Copies a row without converting its values.
+     * @param row a row created by this precision.
+     * @return a new row holding the same Q values.
+     */
+    public Object copy(final Object row) {
+        final int length = length(row);
+        final Object copy = allocate(length);
+        System.arraycopy(row, 0, copy, 0, length);
+        return copy;
+    }
+
+    public int getBytesPerValue() {
+        return bytesPerValue;
+    }
+
+    /**
+     * Estimates the heap size of a row holding the given number of Q values, including the array header and
+     * the JVM's 8-byte alignment.
+     */
+    public long rowBytes(final int length) {
+        final long bytes = ARRAY_HEADER_BYTES + (long) length * bytesPerValue;
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Determines the precision a row was stored with from its array type.
+     * @param row a row of Q values.
+     * @return the matching precision.
+     */
+    public static QPrecision of(final Object row) {
+        if (row instanceof double[]) return DOUBLE;
+        if (row instanceof float[]) return FLOAT32;
+        if (row instanceof short[]) return FLOAT16;
+        if (row instanceof byte[]) return INT8;
+        throw new IllegalArgumentException("Error: unknown Q row type " + row.getClass().getName() + ".");
+    }
+
+    private static double clamp(final double value) {
+        return Math.max(-1.0, Math.min(1.0, value));
+    }
+
+    /**
+     * Converts a float into IEEE 754 half precision, rounding to the nearest representable value.
+     */
+    private static short floatToHalf(final float value) {
+        final int bits = Float.floatToIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+
+        // NaN and infinities.
+        if (exponent >= 0x1f) {
+            if (((bits >>> 23) & 0xff) == 0xff && mantissa != 0)
+                return (short) (sign | 0x7e00);
+            return (short) (sign | 0x7c00);
+        }
+
+        // Subnormals, or too small to represent at all.
+        if (exponent <= 0) {
+            if (exponent < -10)
+                return (short) sign;
+            mantissa |= 0x800000;
+            final int shift = 14 - exponent;
+            final int half = mantissa >> shift;
+            final int remainder = mantissa & ((1 << shift) - 1);
+            final int halfway = 1 << (shift - 1);
+            final int rounded = (remainder > halfway || (remainder == halfway && (half & 1) == 1)) ? half + 1 : half;
+            return (short) (sign | rounded);
+        }
+
+        // Normal numbers: round to nearest even. A carry out of the mantissa correctly bumps the exponent.
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        final int remainder = mantissa & 0x1fff;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) == 1))
+            half++;
+        return (short) half;
+    }
+
+    /**
+     * Converts a value into IEEE 754 half precision, rounding to one of the two nearest representable values with a
+     * probability proportional to its distance from the other, so that the stored value is unbiased on average.
+     */
+    private static short stochasticHalf(final double value) {
+        if (Double.isNaN(value))
+            return floatToHalf(Float.NaN);
+
+        // Work with the magnitude, where adding one to the bits of a half gives the next larger value.
+        final double magnitude = Math.abs(value);
+        final int sign = value < 0 ? 0x8000 : 0;
+        final int nearest = floatToHalf((float) magnitude);
+        final double nearestValue = halfToFloat((short) nearest);
+        if (nearestValue == magnitude || nearest >= 0x7c00)
+            return (short) (sign | nearest);
+
+        final int lower = nearestValue > magnitude ? nearest - 1 : nearest;
+        final double lowerValue = halfToFloat((short) lower);
+        final double upperValue = halfToFloat((short) (lower + 1));
+        final double probabilityUp = (magnitude - lowerValue) / (upperValue - lowerValue);
+
+        final int rounded = ThreadLocalRandom.current().nextDouble() < probabilityUp ? lower + 1 : lower;
+        return (short) (sign | rounded);
+    }
+
+    /**
+     * Converts an IEEE 754 half precision value back into a float. This is exact.
+     */
+    private static float halfToFloat(final short value) {
+        final int bits = value & 0xffff;
+        final int sign = (bits & 0x8000) << 16;
+        final int exponent = (bits >>> 10) & 0x1f;
+        final int mantissa = bits & 0x3ff;
+
+        if (exponent == 0) {
+            // Zero or subnormal.
+            final float magnitude = mantissa * 0x1.0p-24f;
+            return sign == 0 ? magnitude : -magnitude;
+        }
+        if (exponent == 0x1f)
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+}
@@ -0,0 +1,55 @@
+package qlearning.util;
+
+import game.Game;
+import util.Context;
+
+/**
+ * The strategies for turning a board state into the key of its row in a Q table.
+ */
+public enum StateKeys {
+
+    /**
+     * The int hashcode of {@link Utils#boardToHashcode(Context)}. Works for every board, but distinct boards may
+     * collide and silently share Q values; see {@link KeyVerifier}.
+     */
+    HASHCODE {
+        @Override
+        public long key(final Context context) {
+            return Utils.boardToHashcode(context);
+        }
+
+        @Override
+        public boolean supports(final Game game) {
+            return true;
+        }
+    },
+
+    /**
+     * The exact {@link PackedBoard} encoding, used directly as the key. Never collides, but only fits flat boards
+     * with at most 64 (player, site) pairs, such as tic-tac-toe up to 5x5 for two players.
+     */
+    EXACT {
+        @Override
+        public long key(final Context context) {
+            return PackedBoard.of(context).asLong();
+        }
+
+        @Override
+        public boolean supports(final Game game) {
+            return !game.isStacking() && (long) game.players().count() * game.board().numSites() <= 64;
+        }
+    };
+
+    /**
+     * Determines the Q table key of the current board.
+     * @param context the current episode's context.
+     * @return the board's key.
+     */
+    public abstract long key(final Context context);
+
+    /**
+     * @return whether this strategy can produce keys for every board of the game.
+     */
+    public abstract boolean supports(final Game game);
+
+}
@@ -1,15 +1,20 @@
 package qlearning.util;
 
-import com.google.common.collect.BiMap;
+import game.Game;
 import game.equipment.container.board.Board;
+import main.FileHandling;
+import qlearning.AI.QTable;
 import util.Context;
 import util.Move;
+import util.GameLoader;
 import util.Trial;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Utils {
 
@@ -49,12 +54,13 @@ public class Utils {
     }
 
     /**
-     * Given the underlying Q factors of a Q-learning AI, save it uniquely to a file.
+     * Given the underlying Q factors of a Q-learning AI, save it uniquely to a file. The Q values are written with
+     * the Q table's precision.
      * @param fileName The name and extension of the AI, which will be stored in "/resources/AI/". .
-     * @param Q The Bidirectional Q map for a given Q-Learning AI.
+     * @param Q The Q table for a given Q-Learning AI.
      * @throws IOException if unable to save the Q-factors to the given file.
      */
-    public static void saveAI(final String fileName, final BiMap<Integer, double[]> Q)
+    public static void saveAI(final String fileName, final QTable Q)
         throws IOException
     {
         final String pathName = "resources/AIs/" + fileName;
@@ -67,19 +73,23 @@ public class Utils {
     }
 
     /**
-     * Loads the Q-factors of a Q-learning AI from a given file.
+     * Loads the Q-factors of a Q-learning AI from a given file. Models saved as a bidirectional map of doubles, from
+     * before Q tables supported reduced precisions, are still accepted.
      * @param fileName The name and extension of the AI loaded from "/resources/AI/".
-     * @return The stored BiDirectional map.
+     * @return The stored Q table.
      */
-    public static BiMap<Integer, double[]> loadAI(final String fileName) {
-        BiMap<Integer, double[]> Q = null;
+    @SuppressWarnings("unchecked")
+    public static QTable loadAI(final String fileName) {
+        QTable Q = null;
 
         final String pathName = "resources/AIs/" + fileName;
 
-        try {
-            FileInputStream fis = new FileInputStream(pathName);
-            ObjectInputStream in = new ObjectInputStream(fis);
-            Q = (BiMap<Integer, double[]>)in.readObject();
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(pathName))) {
+            final Object stored = in.readObject();
+            if (stored instanceof QTable)
+                Q = (QTable) stored;
+            else
+                Q = QTable.fromMap((Map<Integer, double[]>) stored);
         } catch (IOException | ClassNotFoundException ex) {
             System.err.println("Error: Could not load Q from " + pathName + ". Aborting.");
             ex.printStackTrace();
@@ -88,6 +98,35 @@ public class Utils {
         return Q;
     }
 
+    /**
+     * Determines where Ludii should load a game from. Games bundled with Ludii are loaded by name, and all other
+     * games are loaded from "resources/games/".
+     * @param gameName the name of the game, without the ".lud" extension.
+     * @return the location of the game.
+     */
+    public static String gameLocation(final String gameName) {
+        final String adjustedName = gameName + ".lud";
+        for (String name : FileHandling.listGames())
+            if (name.contains(adjustedName))
+                return adjustedName;
+
+        return "resources/games/" + adjustedName;
+    }
+
+    /**
+     * Loads a game for Ludii to play.
+     * @param gameLocation The location of the game for Ludii to load. Must end in ".lud".
+     * @return the loaded game.
+     */
+    public static Game loadGame(final String gameLocation) {
+        // Note: Hex is loaded differently. This will load Hex with a 3x3 grid, but most sizes up to 19x19 are supported.
+        if (gameLocation.equals("Hex.lud")) {
+            final List<String> options = Collections.singletonList("Board Size/3x3");
+            return GameLoader.loadGameFromName("Hex.lud", options);
+        }
+        return GameLoader.loadGameFromFile(new File(gameLocation));
+    }
+
     /**
      * A helper function for determining how many digits long a number is, which is used for printing.
      */